@@ -0,0 +1,21 @@
+package com.craftinginterpreters.lox;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Entry point of benchmarks.jar. Takes the usual JMH command line, and always turns on the GC profiler so every
+// run reports allocation per operation (gc.alloc.rate.norm) next to the timings.
+//
+//   mvn -f java/pom.xml package
+//   java -jar java/lox-jmh/target/benchmarks.jar [JMH options, e.g. StageBenchmark -p program=fib]
+public class BenchmarkMain {
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        new Runner(new OptionsBuilder()
+                .parent(commandLine)
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,66 @@
+package com.craftinginterpreters.lox;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// One iteration of a numeric Lox loop. Each invocation runs the whole loop, and counts as ITERATIONS operations,
+// so the time and gc.alloc.rate.norm reported are per iteration of the loop; with the specializing nodes the
+// allocation should be close to zero.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NumericLoopBenchmark {
+    private static final int ITERATIONS = 1_000_000;
+
+    private static final String PROGRAM =
+            "fun loop(n) {\n" +
+            "  var sum = 0;\n" +
+            "  for (var i = 0; i < n; i = i + 1) {\n" +
+            "    sum = sum + i * 2 - 1;\n" +
+            "  }\n" +
+            "  return sum;\n" +
+            "}\n";
+
+    @Param({"interpreter", "specialize"})
+    String engine;
+
+    private Interpreter interpreter;
+    private List<Stmt> call;
+
+    @Setup
+    public void setUp() {
+        interpreter = new Interpreter();
+        interpreter.specializing = engine.equals("specialize");
+        interpreter.interpret(compile(PROGRAM));
+        call = compile("loop(" + ITERATIONS + ");");
+    }
+
+    private static List<Stmt> compile(String source) {
+        List<Stmt> statements = new Parser(new Scanner(source).scanTokens()).parse();
+        new Resolver().resolve(statements);
+        return Optimizer.optimize(statements);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ITERATIONS)
+    public Interpreter loop() {
+        interpreter.interpret(call);
+        return interpreter;
+    }
+}
@@ -0,0 +1,88 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+// A whole script's tokens packed into parallel arrays instead of a Token object each: a byte of type, the
+// offset and length of the lexeme in the source and the line, about 13 bytes a token, plus 8 for the value of
+// each number literal. Token objects are only made as the Parser reads them, and only those the syntax tree
+// keeps outlive the parse. StageBenchmark measures this against a retained token list; the interpreter itself
+// parses straight from the Scanner and keeps no tokens at all.
+final class PackedTokens {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final Source source;
+    private byte[] types = new byte[256];
+    private int[] offsets = new int[256];
+    private int[] lengths = new int[256];
+    private int[] lines = new int[256];
+    // Number literal values, in the order the literals appear.
+    private double[] numbers = new double[64];
+    private int count = 0;
+    private int numberCount = 0;
+
+    private PackedTokens(Source source) {
+        this.source = source;
+    }
+
+    // Errors in the script are collected and dropped; the benchmarks only run scripts that have none.
+    static PackedTokens scan(Source source) {
+        PackedTokens packed = new PackedTokens(source);
+        Scanner scanner = new Scanner(source, ErrorReporter.collecting());
+        Token token;
+        do {
+            token = scanner.next();
+            packed.add(token.type, token.offset, token.length, token.line, token.literal);
+        }
+        while (token.type != TokenType.EOF);
+        return packed;
+    }
+
+    int size() {
+        return count;
+    }
+
+    private void add(TokenType type, int offset, int length, int line, Object literal) {
+        if (count == types.length) {
+            int capacity = count * 2;
+            types = Arrays.copyOf(types, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+        }
+        types[count] = (byte) type.ordinal();
+        offsets[count] = offset;
+        lengths[count] = length;
+        lines[count] = line;
+        count ++;
+        if (type == TokenType.NUMBER) {
+            if (numberCount == numbers.length) {
+                numbers = Arrays.copyOf(numbers, numberCount * 2);
+            }
+            numbers[numberCount ++] = (double) literal;
+        }
+    }
+
+    // Reads the tokens back in order. The stream ends with the EOF token the Scanner always adds last.
+    TokenStream stream() {
+        return new TokenStream() {
+            private int current = 0;
+            private int number = 0;
+
+            @Override
+            public Token next() {
+                int index = current;
+                if (current < count - 1) current ++;
+                TokenType type = TYPES[types[index]];
+                Object literal = null;
+                if (type == TokenType.NUMBER) {
+                    literal = numbers[number ++];
+                }
+                else if (type == TokenType.STRING) {
+                    // Without the surrounding quotes.
+                    literal = source.text(offsets[index] + 1, offsets[index] + lengths[index] - 1);
+                }
+                return new Token(type, source, offsets[index], lengths[index], literal, lines[index]);
+            }
+        };
+    }
+}
@@ -0,0 +1,70 @@
+package com.craftinginterpreters.lox;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// The classic Lox benchmark programs end to end, from source text to the last print statement, on each of the
+// ways jlox can run them.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProgramBenchmark {
+    @Param({"fib", "binary_trees", "method_call", "string_concat", "zoo", "instantiation", "helpers"})
+    String program;
+
+    // "interpreter" is the plain tree-walker, "specialize" the tree-walker with self-specializing nodes (--specialize),
+    // "inline" the tree-walker inlining small functions (--inline), "tiered" the tree-walker compiling hot functions
+    // to JVM bytecode (--tiered) and "vm" the bytecode VM (--vm).
+    @Param({"interpreter", "specialize", "inline", "tiered", "vm"})
+    String engine;
+
+    private String source;
+    private PrintStream out;
+
+    @Setup
+    public void setUp() {
+        source = Programs.load(program);
+        out = Programs.silence();
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(out);
+    }
+
+    @Benchmark
+    public Object run() {
+        List<Token> tokens = new Scanner(source).scanTokens();
+        List<Stmt> statements = new Parser(tokens).parse();
+        new Resolver().resolve(statements);
+        statements = Optimizer.optimize(statements);
+        if (engine.equals("vm")) {
+            VM vm = new VM();
+            vm.interpret(new Compiler(vm).compile(statements));
+            return vm;
+        }
+        Interpreter interpreter = new Interpreter();
+        interpreter.specializing = engine.equals("specialize");
+        interpreter.tiered = engine.equals("tiered");
+        if (engine.equals("inline")) interpreter.inlineBudget = Inliner.DEFAULT_BUDGET;
+        interpreter.interpret(statements);
+        return interpreter;
+    }
+}
@@ -0,0 +1,35 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+// The Lox programs under src/main/resources/benchmark, and a way to keep what they print out of the results.
+final class Programs {
+    private static final PrintStream NOWHERE = new PrintStream(OutputStream.nullOutputStream());
+
+    private Programs() {
+    }
+
+    static String load(String name) {
+        try (InputStream in = Programs.class.getResourceAsStream("/benchmark/" + name + ".lox")) {
+            if (in == null) {
+                throw new IllegalArgumentException("No benchmark program named '" + name + "'.");
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        catch (IOException error) {
+            throw new UncheckedIOException(error);
+        }
+    }
+
+    // Returns the stream that was replaced, to hand back to System.setOut() afterwards.
+    static PrintStream silence() {
+        PrintStream out = System.out;
+        System.setOut(NOWHERE);
+        return out;
+    }
+}
@@ -0,0 +1,86 @@
+package com.craftinginterpreters.lox;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Each stage of the pipeline on its own. Every benchmark starts from the output of the stage before it, prepared
+// once per trial, so a regression shows up against the stage that caused it.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StageBenchmark {
+    @Param({"fib", "binary_trees", "method_call", "string_concat", "zoo", "instantiation", "identifiers"})
+    String program;
+
+    private String source;
+    private List<Token> tokens;
+    private PackedTokens packedTokens;
+    private List<Stmt> statements;
+    private PrintStream out;
+
+    @Setup
+    public void setUp() {
+        source = Programs.load(program);
+        tokens = new Scanner(source).scanTokens();
+        packedTokens = PackedTokens.scan(Source.of(source));
+        statements = new Parser(tokens).parse();
+        // Resolving only fills in fields on the tree, so the same statements can be resolved again and again.
+        new Resolver().resolve(statements);
+        out = Programs.silence();
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(out);
+    }
+
+    @Benchmark
+    public List<Token> scan() {
+        return new Scanner(source).scanTokens();
+    }
+
+    @Benchmark
+    public PackedTokens scanPacked() {
+        return PackedTokens.scan(Source.of(source));
+    }
+
+    @Benchmark
+    public List<Stmt> parse() {
+        return new Parser(tokens).parse();
+    }
+
+    @Benchmark
+    public List<Stmt> parsePacked() {
+        return new Parser(packedTokens.stream(), ErrorReporter.collecting()).parse();
+    }
+
+    @Benchmark
+    public List<Stmt> resolve() {
+        new Resolver().resolve(statements);
+        return statements;
+    }
+
+    @Benchmark
+    public Interpreter interpret() {
+        Interpreter interpreter = new Interpreter();
+        interpreter.interpret(statements);
+        return interpreter;
+    }
+}
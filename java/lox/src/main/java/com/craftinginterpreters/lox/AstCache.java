@@ -0,0 +1,61 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+// An on-disk cache of resolved and optimized syntax trees, keyed by a hash of the script's source. A hit skips
+// the whole front end. Only scripts that got through it without errors are stored, so a hit never has
+// diagnostics to replay. Anything wrong with an entry, from a stale format to a truncated file, is treated as a
+// miss.
+final class AstCache {
+    private static final int MAGIC = 0x4c4f5841; // "LOXA"
+    // Bump whenever the AST classes or AstWriter's encoding change.
+    private static final int VERSION = 4;
+
+    private final Path directory;
+
+    AstCache(Path directory) {
+        this.directory = directory;
+    }
+
+    List<Stmt> load(String hash) {
+        Path file = directory.resolve(hash);
+        if (!Files.isRegularFile(file)) return null;
+        try {
+            ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file));
+            if (bytes.remaining() < 8 || bytes.getInt() != MAGIC || bytes.getInt() != VERSION) return null;
+            byte[] tree = new byte[bytes.remaining()];
+            bytes.get(tree);
+            return AstReader.read(tree);
+        }
+        catch (IOException error) {
+            return null;
+        }
+    }
+
+    // Written to a temporary file and moved into place, so a concurrent reader sees a whole entry or none.
+    void store(String hash, List<Stmt> statements) {
+        byte[] tree = AstWriter.write(statements);
+        ByteBuffer bytes = ByteBuffer.allocate(8 + tree.length);
+        bytes.putInt(MAGIC).putInt(VERSION).put(tree);
+        try {
+            Files.createDirectories(directory);
+            Path temporary = Files.createTempFile(directory, hash, ".tmp");
+            try {
+                Files.write(temporary, bytes.array());
+                Files.move(temporary, directory.resolve(hash), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            finally {
+                Files.deleteIfExists(temporary);
+            }
+        }
+        catch (IOException error) {
+            // The cache is only ever an optimization; failing to fill it is not an error in the script.
+        }
+    }
+}
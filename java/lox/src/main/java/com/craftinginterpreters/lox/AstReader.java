@@ -0,0 +1,238 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.craftinginterpreters.lox.AstWriter.*;
+
+// Reads back the syntax trees AstWriter writes, resolved and ready to run. Malformed input fails with an
+// IOException rather than producing a broken tree.
+final class AstReader {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final DataInputStream in;
+    private String[] strings;
+
+    private AstReader(byte[] bytes) {
+        this.in = new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    static List<Stmt> read(byte[] bytes) throws IOException {
+        AstReader reader = new AstReader(bytes);
+        reader.strings = new String[reader.readCount()];
+        for (int i = 0; i < reader.strings.length; i ++) {
+            reader.strings[i] = reader.in.readUTF().intern();
+        }
+        List<Stmt> statements = reader.readStatements();
+        if (reader.in.read() != -1) throw new IOException("Trailing bytes after the syntax tree.");
+        return statements;
+    }
+
+    private int readInt() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed integer.");
+    }
+
+    // The length of something that follows, each element of which takes at least a byte, so a corrupt length is
+    // caught before anything is allocated for it.
+    private int readCount() throws IOException {
+        int count = readInt();
+        if (count < 0 || count > in.available()) throw new IOException("Bad count " + count + ".");
+        return count;
+    }
+
+    private String readString() throws IOException {
+        int index = readInt();
+        if (index < 0 || index >= strings.length) throw new IOException("Bad string index " + index + ".");
+        return strings[index];
+    }
+
+    private Token readToken() throws IOException {
+        int type = in.readUnsignedByte();
+        if (type >= TYPES.length) throw new IOException("Bad token type " + type + ".");
+        String lexeme = readString();
+        return new Token(TYPES[type], lexeme, null, readInt());
+    }
+
+    private int[] readInts() throws IOException {
+        int[] values = new int[readCount()];
+        for (int i = 0; i < values.length; i ++) {
+            values[i] = readInt() - 1;
+        }
+        return values;
+    }
+
+    private boolean readBoolean() throws IOException {
+        return in.readUnsignedByte() != 0;
+    }
+
+    private List<Token> readTokens() throws IOException {
+        int size = readCount();
+        List<Token> tokens = new ArrayList<>(size);
+        for (int i = 0; i < size; i ++) {
+            tokens.add(readToken());
+        }
+        return tokens;
+    }
+
+    private List<Expr> readExprs() throws IOException {
+        int size = readCount();
+        List<Expr> exprs = new ArrayList<>(size);
+        for (int i = 0; i < size; i ++) {
+            exprs.add(readExpr());
+        }
+        return exprs;
+    }
+
+    private List<Stmt> readStatements() throws IOException {
+        int size = readCount();
+        List<Stmt> statements = new ArrayList<>(size);
+        for (int i = 0; i < size; i ++) {
+            statements.add(readStmt());
+        }
+        return statements;
+    }
+
+    private Expr readExpr() throws IOException {
+        int tag = in.readUnsignedByte();
+        switch (tag) {
+            case 0:
+                return null;
+            case ASSIGN: {
+                Expr.Assign expr = new Expr.Assign(readToken(), readExpr());
+                expr.slot = readInt() - 1;
+                expr.upvalue = readInt() - 1;
+                expr.captured = readBoolean();
+                return expr;
+            }
+            case BINARY:
+                return new Expr.Binary(readExpr(), readToken(), readExpr());
+            case CALL:
+                return new Expr.Call(readExpr(), readToken(), readExprs());
+            case GET:
+                return new Expr.Get(readExpr(), readToken());
+            case GROUPING:
+                return new Expr.Grouping(readExpr());
+            case LITERAL:
+                return new Expr.Literal(readValue());
+            case LOGIC:
+                return new Expr.Logic(readExpr(), readToken(), readExpr());
+            case SET:
+                return new Expr.Set(readExpr(), readToken(), readExpr());
+            case SUPER: {
+                Expr.Super expr = new Expr.Super(readToken(), readToken());
+                expr.upvalue = readInt() - 1;
+                Expr receiver = readExpr();
+                if (receiver != null && !(receiver instanceof Expr.This)) throw new IOException("Bad receiver.");
+                expr.receiver = (Expr.This) receiver;
+                return expr;
+            }
+            case THIS: {
+                Expr.This expr = new Expr.This(readToken());
+                expr.slot = readInt() - 1;
+                expr.upvalue = readInt() - 1;
+                return expr;
+            }
+            case UNARY:
+                return new Expr.Unary(readToken(), readExpr());
+            case VARIABLE:
+                return readVariable();
+            case INVARIANT:
+                return new Expr.Invariant(readExpr(), readInt());
+        }
+        throw new IOException("Bad expression tag " + tag + ".");
+    }
+
+    // Called once the VARIABLE tag has been read.
+    private Expr.Variable readVariable() throws IOException {
+        Expr.Variable expr = new Expr.Variable(readToken());
+        expr.slot = readInt() - 1;
+        expr.upvalue = readInt() - 1;
+        expr.captured = readBoolean();
+        return expr;
+    }
+
+    private Object readValue() throws IOException {
+        int kind = in.readUnsignedByte();
+        switch (kind) {
+            case NIL: return null;
+            case TRUE: return true;
+            case FALSE: return false;
+            case NUMBER: return in.readDouble();
+            case STRING: return readString();
+        }
+        throw new IOException("Bad literal kind " + kind + ".");
+    }
+
+    private Stmt readStmt() throws IOException {
+        int tag = in.readUnsignedByte();
+        switch (tag) {
+            case 0:
+                return null;
+            case BLOCK: {
+                Stmt.Block stmt = new Stmt.Block(readStatements());
+                stmt.scoped = readBoolean();
+                stmt.frameSize = readInt();
+                return stmt;
+            }
+            case CLASS: {
+                Token name = readToken();
+                Expr.Variable superclass = null;
+                int superclassTag = in.readUnsignedByte();
+                if (superclassTag == VARIABLE) {
+                    superclass = readVariable();
+                }
+                else if (superclassTag != 0) {
+                    throw new IOException("Bad superclass tag " + superclassTag + ".");
+                }
+                List<Stmt.Function> methods = new ArrayList<>();
+                for (Stmt method : readStatements()) {
+                    if (!(method instanceof Stmt.Function)) throw new IOException("Bad method.");
+                    methods.add((Stmt.Function) method);
+                }
+                Stmt.Class stmt = new Stmt.Class(name, superclass, methods);
+                stmt.slot = readInt() - 1;
+                stmt.superSlot = readInt();
+                stmt.captured = readBoolean();
+                return stmt;
+            }
+            case EXPRESSION:
+                return new Stmt.Expression(readExpr());
+            case FUNCTION: {
+                Stmt.Function stmt = new Stmt.Function(readToken(), readTokens(), readStatements());
+                stmt.slot = readInt() - 1;
+                stmt.frameSize = readInt();
+                stmt.upvalues = readInts();
+                stmt.capturedSlots = readInts();
+                stmt.captured = readBoolean();
+                return stmt;
+            }
+            case IF:
+                return new Stmt.If(readExpr(), readStmt(), readStmt());
+            case PRINT:
+                return new Stmt.Print(readExpr());
+            case RETURN:
+                return new Stmt.Return(readToken(), readExpr());
+            case VAR: {
+                Stmt.Var stmt = new Stmt.Var(readToken(), readExpr());
+                stmt.slot = readInt() - 1;
+                stmt.captured = readBoolean();
+                return stmt;
+            }
+            case WHILE: {
+                Stmt.While stmt = new Stmt.While(readExpr(), readStmt());
+                stmt.invariants = readInts();
+                return stmt;
+            }
+        }
+        throw new IOException("Bad statement tag " + tag + ".");
+    }
+}
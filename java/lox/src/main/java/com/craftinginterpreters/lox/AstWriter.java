@@ -0,0 +1,362 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Writes resolved syntax trees in the compact binary form AstReader reads. Each node is a tag byte followed by
+// its fields in declaration order, with 0 standing for a missing node. Integers are variable-length, and every
+// string, lexemes included, is written once in a table up front and referred to by index. What the Resolver
+// works out is written too, from slots to upvalues; everything the Interpreter fills in while running
+// is not.
+final class AstWriter implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    static final int ASSIGN = 1, BINARY = 2, CALL = 3, GET = 4, GROUPING = 5, LITERAL = 6, LOGIC = 7, SET = 8,
+            SUPER = 9, THIS = 10, UNARY = 11, VARIABLE = 12, INVARIANT = 13;
+    static final int BLOCK = 1, CLASS = 2, EXPRESSION = 3, FUNCTION = 4, IF = 5, PRINT = 6, RETURN = 7, VAR = 8,
+            WHILE = 9;
+    static final int NIL = 0, TRUE = 1, FALSE = 2, NUMBER = 3, STRING = 4;
+
+    private final ByteArrayOutputStream tree = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(tree);
+    private final Map<String, Integer> stringIndexes = new HashMap<>();
+    private final List<String> strings = new ArrayList<>();
+
+    static byte[] write(List<Stmt> statements) {
+        AstWriter writer = new AstWriter();
+        try {
+            writer.writeStatements(statements);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            writeInt(out, writer.strings.size());
+            for (String string : writer.strings) {
+                out.writeUTF(string);
+            }
+            writer.tree.writeTo(out);
+            return bytes.toByteArray();
+        }
+        catch (IOException error) {
+            throw new UncheckedIOException(error);
+        }
+    }
+
+    // Non-negative integers, seven bits to a byte, low bits first.
+    static void writeInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private void writeInt(int value) {
+        try {
+            writeInt(out, value);
+        }
+        catch (IOException error) {
+            throw new UncheckedIOException(error);
+        }
+    }
+
+    private void writeByte(int value) {
+        try {
+            out.writeByte(value);
+        }
+        catch (IOException error) {
+            throw new UncheckedIOException(error);
+        }
+    }
+
+    private void writeString(String string) {
+        Integer index = stringIndexes.get(string);
+        if (index == null) {
+            index = strings.size();
+            strings.add(string);
+            stringIndexes.put(string, index);
+        }
+        writeInt(index);
+    }
+
+    // A token's literal only matters to the Parser, which has already copied it into an Expr.Literal.
+    private void writeToken(Token token) {
+        writeByte(token.type.ordinal());
+        writeString(token.lexeme());
+        writeInt(token.line);
+    }
+
+    private void writeTokens(List<Token> tokens) {
+        writeInt(tokens.size());
+        for (Token token : tokens) {
+            writeToken(token);
+        }
+    }
+
+    // Slots and upvalue indexes are -1 when unused, so they are written one higher.
+    private void writeResolved(int slot, int upvalue) {
+        writeInt(slot + 1);
+        writeInt(upvalue + 1);
+    }
+
+    private void writeInts(int[] values) {
+        writeInt(values.length);
+        for (int value : values) {
+            writeInt(value + 1);
+        }
+    }
+
+    private void writeExpr(Expr expr) {
+        if (expr == null) {
+            writeByte(0);
+            return;
+        }
+        expr.accept(this);
+    }
+
+    private void writeExprs(List<Expr> exprs) {
+        writeInt(exprs.size());
+        for (Expr expr : exprs) {
+            writeExpr(expr);
+        }
+    }
+
+    private void writeStmt(Stmt stmt) {
+        if (stmt == null) {
+            writeByte(0);
+            return;
+        }
+        stmt.accept(this);
+    }
+
+    private void writeStatements(List<? extends Stmt> statements) {
+        writeInt(statements.size());
+        for (Stmt statement : statements) {
+            writeStmt(statement);
+        }
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        writeByte(ASSIGN);
+        writeToken(expr.name);
+        writeExpr(expr.value);
+        writeResolved(expr.slot, expr.upvalue);
+        writeByte(expr.captured ? 1 : 0);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        writeByte(BINARY);
+        writeExpr(expr.left);
+        writeToken(expr.operator);
+        writeExpr(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        writeByte(CALL);
+        writeExpr(expr.callee);
+        writeToken(expr.paren);
+        writeExprs(expr.arguments);
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        writeByte(GET);
+        writeExpr(expr.object);
+        writeToken(expr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        writeByte(GROUPING);
+        writeExpr(expr.expression);
+        return null;
+    }
+
+    // Inlining runs on the tree about to be executed, after it has been cached, but an inlined call is
+    // written as the call it replaced all the same.
+    @Override
+    public Void visitInlineExpr(Expr.Inline expr) {
+        return expr.call.accept(this);
+    }
+
+    @Override
+    public Void visitInvariantExpr(Expr.Invariant expr) {
+        writeByte(INVARIANT);
+        writeExpr(expr.expression);
+        writeInt(expr.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        writeByte(LITERAL);
+        Object value = expr.value;
+        if (value == null) {
+            writeByte(NIL);
+        }
+        else if (value instanceof Boolean) {
+            writeByte((boolean) value ? TRUE : FALSE);
+        }
+        else if (value instanceof Double) {
+            writeByte(NUMBER);
+            try {
+                out.writeDouble((double) value);
+            }
+            catch (IOException error) {
+                throw new UncheckedIOException(error);
+            }
+        }
+        else {
+            writeByte(STRING);
+            writeString((String) value);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicExpr(Expr.Logic expr) {
+        writeByte(LOGIC);
+        writeExpr(expr.left);
+        writeToken(expr.operator);
+        writeExpr(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        writeByte(SET);
+        writeExpr(expr.object);
+        writeToken(expr.name);
+        writeExpr(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        writeByte(SUPER);
+        writeToken(expr.keyword);
+        writeToken(expr.method);
+        writeInt(expr.upvalue + 1);
+        writeExpr(expr.receiver);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        writeByte(THIS);
+        writeToken(expr.keyword);
+        writeResolved(expr.slot, expr.upvalue);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        writeByte(UNARY);
+        writeToken(expr.operator);
+        writeExpr(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        writeByte(VARIABLE);
+        writeToken(expr.name);
+        writeResolved(expr.slot, expr.upvalue);
+        writeByte(expr.captured ? 1 : 0);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        writeByte(BLOCK);
+        writeStatements(stmt.statements);
+        writeByte(stmt.scoped ? 1 : 0);
+        writeInt(stmt.frameSize);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        writeByte(CLASS);
+        writeToken(stmt.name);
+        writeExpr(stmt.superclass);
+        writeStatements(stmt.methods);
+        writeInt(stmt.slot + 1);
+        writeInt(stmt.superSlot);
+        writeByte(stmt.captured ? 1 : 0);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        writeByte(EXPRESSION);
+        writeExpr(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        writeByte(FUNCTION);
+        writeToken(stmt.name);
+        writeTokens(stmt.params);
+        writeStatements(stmt.body);
+        writeInt(stmt.slot + 1);
+        writeInt(stmt.frameSize);
+        writeInts(stmt.upvalues);
+        writeInts(stmt.capturedSlots);
+        writeByte(stmt.captured ? 1 : 0);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        writeByte(IF);
+        writeExpr(stmt.condition);
+        writeStmt(stmt.thenBranch);
+        writeStmt(stmt.elseBranch);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        writeByte(PRINT);
+        writeExpr(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        writeByte(RETURN);
+        writeToken(stmt.keyword);
+        writeExpr(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        writeByte(VAR);
+        writeToken(stmt.name);
+        writeExpr(stmt.initializer);
+        writeInt(stmt.slot + 1);
+        writeByte(stmt.captured ? 1 : 0);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        writeByte(WHILE);
+        writeExpr(stmt.condition);
+        writeStmt(stmt.body);
+        writeInts(stmt.invariants == null ? new int[0] : stmt.invariants);
+        return null;
+    }
+}
@@ -0,0 +1,261 @@
+package com.craftinginterpreters.lox;
+
+// The operation behind an Expr.Binary when the interpreter is specializing. Every node starts out
+// uninitialized; the first time it runs it replaces itself with an operation specialized for its operator and
+// the types it saw. If a specialized operation later sees other types, it gives up and rewrites the node to
+// the generic operation for good, so each node changes at most twice.
+//
+// Operations evaluate their own operands. The numeric ones ask for them through
+// Interpreter.evaluateNumber() and hand their result back through executeNumber(), so a tree of number
+// operations never boxes its intermediate values.
+abstract class BinaryOp {
+    static final BinaryOp UNINITIALIZED = new BinaryOp() {
+        @Override
+        Object apply(Expr.Binary expr, Object left, Object right) {
+            BinaryOp op = specialize(expr.operator.type, left, right);
+            expr.op = op;
+            return op.apply(expr, left, right);
+        }
+    };
+
+    static final BinaryOp GENERIC = new BinaryOp() {
+        @Override
+        Object apply(Expr.Binary expr, Object left, Object right) {
+            return Interpreter.binary(expr.operator, left, right);
+        }
+    };
+
+    Object execute(Interpreter interpreter, Expr.Binary expr) {
+        Object left = interpreter.evaluate(expr.left);
+        Object right = interpreter.evaluate(expr.right);
+        return apply(expr, left, right);
+    }
+
+    // Throws UnexpectedValue carrying the result if it is not a number.
+    double executeNumber(Interpreter interpreter, Expr.Binary expr) {
+        return Interpreter.expectNumber(execute(interpreter, expr));
+    }
+
+    // Whether executeNumber() is worth calling, i.e. the node currently expects to produce a number.
+    boolean producesNumber() {
+        return false;
+    }
+
+    // Applies the operation to operands that have already been evaluated.
+    abstract Object apply(Expr.Binary expr, Object left, Object right);
+
+    private static BinaryOp specialize(TokenType operator, Object left, Object right) {
+        boolean numbers = left instanceof Double && right instanceof Double;
+        switch (operator) {
+            case EQUAL_EQUAL: return numbers ? NUMBER_EQUAL : EQUAL;
+            case BANG_EQUAL: return numbers ? NUMBER_NOT_EQUAL : NOT_EQUAL;
+        }
+        if (left instanceof String && right instanceof String && operator == TokenType.PLUS) {
+            return STRING_CONCAT;
+        }
+        if (!numbers) {
+            return GENERIC;
+        }
+        switch (operator) {
+            case PLUS: return NUMBER_ADD;
+            case MINUS: return NUMBER_SUBTRACT;
+            case STAR: return NUMBER_MULTIPLY;
+            case SLASH: return NUMBER_DIVIDE;
+            case GREATER: return NUMBER_GREATER;
+            case GREATER_EQUAL: return NUMBER_GREATER_EQUAL;
+            case LESS: return NUMBER_LESS;
+            case LESS_EQUAL: return NUMBER_LESS_EQUAL;
+        }
+        return GENERIC;
+    }
+
+    private static Object generalize(Expr.Binary expr, Object left, Object right) {
+        expr.op = GENERIC;
+        return GENERIC.apply(expr, left, right);
+    }
+
+    // The left operand of a numeric operation was not a number. The right one has not been evaluated yet.
+    private static Object leftUnexpected(Interpreter interpreter, Expr.Binary expr, UnexpectedValue unexpected) {
+        return generalize(expr, unexpected.value, interpreter.evaluate(expr.right));
+    }
+
+    private static Object rightUnexpected(Expr.Binary expr, double left, UnexpectedValue unexpected) {
+        return generalize(expr, left, unexpected.value);
+    }
+
+    // Evaluates both operands of a numeric operation as numbers, which is where the unboxed path starts, and
+    // rewrites the node to the generic operation if either turns out not to be one.
+    private abstract static class NumericOp extends BinaryOp {
+        // Applies the operation to two numbers and boxes the result.
+        abstract Object box(Expr.Binary expr, double left, double right);
+
+        @Override
+        Object apply(Expr.Binary expr, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return box(expr, (double) left, (double) right);
+            }
+            return generalize(expr, left, right);
+        }
+
+        @Override
+        Object execute(Interpreter interpreter, Expr.Binary expr) {
+            double left;
+            try {
+                left = interpreter.evaluateNumber(expr.left);
+            }
+            catch (UnexpectedValue unexpected) {
+                return leftUnexpected(interpreter, expr, unexpected);
+            }
+            double right;
+            try {
+                right = interpreter.evaluateNumber(expr.right);
+            }
+            catch (UnexpectedValue unexpected) {
+                return rightUnexpected(expr, left, unexpected);
+            }
+            return box(expr, left, right);
+        }
+    }
+
+    // An arithmetic operation on numbers, which only boxes its result when asked for an Object.
+    private abstract static class NumberOp extends NumericOp {
+        abstract double op(Expr.Binary expr, double left, double right);
+
+        @Override
+        Object box(Expr.Binary expr, double left, double right) {
+            return op(expr, left, right);
+        }
+
+        @Override
+        double executeNumber(Interpreter interpreter, Expr.Binary expr) {
+            double left;
+            try {
+                left = interpreter.evaluateNumber(expr.left);
+            }
+            catch (UnexpectedValue unexpected) {
+                return Interpreter.expectNumber(leftUnexpected(interpreter, expr, unexpected));
+            }
+            double right;
+            try {
+                right = interpreter.evaluateNumber(expr.right);
+            }
+            catch (UnexpectedValue unexpected) {
+                return Interpreter.expectNumber(rightUnexpected(expr, left, unexpected));
+            }
+            return op(expr, left, right);
+        }
+
+        @Override
+        boolean producesNumber() {
+            return true;
+        }
+    }
+
+    // A comparison of two numbers, which produces a boolean.
+    private abstract static class ComparisonOp extends NumericOp {
+        abstract boolean test(double left, double right);
+
+        @Override
+        Object box(Expr.Binary expr, double left, double right) {
+            return test(left, right);
+        }
+    }
+
+    private static final BinaryOp EQUAL = new BinaryOp() {
+        @Override
+        Object apply(Expr.Binary expr, Object left, Object right) {
+            return Interpreter.isEqual(left, right);
+        }
+    };
+
+    private static final BinaryOp NOT_EQUAL = new BinaryOp() {
+        @Override
+        Object apply(Expr.Binary expr, Object left, Object right) {
+            return !Interpreter.isEqual(left, right);
+        }
+    };
+
+    private static final BinaryOp STRING_CONCAT = new BinaryOp() {
+        @Override
+        Object apply(Expr.Binary expr, Object left, Object right) {
+            if (left instanceof String && right instanceof String) {
+                return (String) left + (String) right;
+            }
+            return generalize(expr, left, right);
+        }
+    };
+
+    private static final BinaryOp NUMBER_ADD = new NumberOp() {
+        @Override
+        double op(Expr.Binary expr, double left, double right) {
+            return left + right;
+        }
+    };
+
+    private static final BinaryOp NUMBER_SUBTRACT = new NumberOp() {
+        @Override
+        double op(Expr.Binary expr, double left, double right) {
+            return left - right;
+        }
+    };
+
+    private static final BinaryOp NUMBER_MULTIPLY = new NumberOp() {
+        @Override
+        double op(Expr.Binary expr, double left, double right) {
+            return left * right;
+        }
+    };
+
+    private static final BinaryOp NUMBER_DIVIDE = new NumberOp() {
+        @Override
+        double op(Expr.Binary expr, double left, double right) {
+            if (right == 0) {
+                throw new RuntimeError(expr.operator, "denominator can't be zero");
+            }
+            return left / right;
+        }
+    };
+
+    // Double.equals() compares bit patterns, so this agrees with isEqual() on NaN and -0.
+    private static final BinaryOp NUMBER_EQUAL = new ComparisonOp() {
+        @Override
+        boolean test(double left, double right) {
+            return Double.doubleToLongBits(left) == Double.doubleToLongBits(right);
+        }
+    };
+
+    private static final BinaryOp NUMBER_NOT_EQUAL = new ComparisonOp() {
+        @Override
+        boolean test(double left, double right) {
+            return Double.doubleToLongBits(left) != Double.doubleToLongBits(right);
+        }
+    };
+
+    private static final BinaryOp NUMBER_GREATER = new ComparisonOp() {
+        @Override
+        boolean test(double left, double right) {
+            return left > right;
+        }
+    };
+
+    private static final BinaryOp NUMBER_GREATER_EQUAL = new ComparisonOp() {
+        @Override
+        boolean test(double left, double right) {
+            return left >= right;
+        }
+    };
+
+    private static final BinaryOp NUMBER_LESS = new ComparisonOp() {
+        @Override
+        boolean test(double left, double right) {
+            return left < right;
+        }
+    };
+
+    private static final BinaryOp NUMBER_LESS_EQUAL = new ComparisonOp() {
+        @Override
+        boolean test(double left, double right) {
+            return left <= right;
+        }
+    };
+}
@@ -0,0 +1,53 @@
+package com.craftinginterpreters.lox;
+
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+
+// How much work one run of a script may do. The Interpreter charges a step for every loop iteration and every
+// call, which bounds how long a script can run no matter what it does. The clock and cancellation are only
+// looked at every CHECK_INTERVAL steps, to keep charging cheap. A budget belongs to a single run, and its time
+// is measured from when that run starts, not from when the budget was made.
+public final class Budget {
+    private static final int CHECK_INTERVAL = 1024;
+
+    private final long maxSteps;
+    private final long maxTime;
+    private long deadline;
+    private long steps = 0;
+    private volatile boolean cancelled = false;
+
+    public Budget(long maxSteps, Duration maxTime) {
+        this.maxSteps = maxSteps;
+        this.maxTime = maxTime.toNanos();
+    }
+
+    public static Budget unlimited() {
+        return new Budget(Long.MAX_VALUE, Duration.ofNanos(Long.MAX_VALUE / 2));
+    }
+
+    // Stops the script at its next check. Safe to call from any thread.
+    public void cancel() {
+        cancelled = true;
+    }
+
+    // Starts the clock. Called by LoxRuntime.run() before it does anything else.
+    void start() {
+        deadline = System.nanoTime() + maxTime;
+    }
+
+    void charge() {
+        if (++ steps > maxSteps) throw new Exhausted("Script ran more than " + maxSteps + " steps.");
+        if (steps % CHECK_INTERVAL != 0) return;
+        if (cancelled) throw new CancellationException("Script cancelled.");
+        if (System.nanoTime() - deadline > 0) throw new Exhausted("Script ran out of time.");
+    }
+
+    // Thrown out of the Interpreter when a script uses up its budget. It is not a RuntimeError, so it is not
+    // reported as one and ends the whole run.
+    @SuppressWarnings("serial")
+    public static final class Exhausted extends RuntimeException {
+        Exhausted(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.craftinginterpreters.lox;
+
+// Holds a local variable that a closure captures. The variable's slot holds the cell, and so does every closure
+// that captures it, so an assignment through any of them is seen by all the others.
+final class Cell {
+    Object value;
+
+    Cell(Object value) {
+        this.value = value;
+    }
+}
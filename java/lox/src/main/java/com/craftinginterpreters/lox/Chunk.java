@@ -0,0 +1,30 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+// A compiled function body: the bytecode, the line each byte came from and the constant pool.
+final class Chunk {
+    byte[] code = new byte[8];
+    int[] lines = new int[8];
+    int count = 0;
+    Object[] constants = new Object[8];
+    int constantCount = 0;
+
+    void write(byte b, int line) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+        code[count] = b;
+        lines[count] = line;
+        count ++;
+    }
+
+    int addConstant(Object value) {
+        if (constantCount == constants.length) {
+            constants = Arrays.copyOf(constants, constantCount * 2);
+        }
+        constants[constantCount] = value;
+        return constantCount ++;
+    }
+}
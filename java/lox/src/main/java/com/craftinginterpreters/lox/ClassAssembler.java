@@ -0,0 +1,333 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Just enough of a class file writer for the JIT. Classes are written as version 49 so the verifier infers
+// types itself and the code needs no stack map frames.
+final class ClassAssembler {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private static final int VERSION = 49;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndexes = new HashMap<>();
+    private int poolCount = 1;
+
+    private final String name;
+    private final List<String> interfaces = new ArrayList<>();
+    private final List<String[]> fields = new ArrayList<>();
+    private final List<Code> methods = new ArrayList<>();
+
+    ClassAssembler(String name) {
+        this.name = name;
+    }
+
+    void addInterface(String interfaceName) {
+        interfaces.add(interfaceName);
+    }
+
+    void addStaticField(String fieldName, String descriptor) {
+        fields.add(new String[] {fieldName, descriptor});
+    }
+
+    Code addMethod(int access, String methodName, String descriptor) {
+        Code code = new Code(access, methodName, descriptor);
+        methods.add(code);
+        return code;
+    }
+
+    byte[] toByteArray() {
+        try {
+            int thisClass = classRef(name);
+            int superClass = classRef("java/lang/Object");
+            List<Integer> interfaceRefs = new ArrayList<>();
+            for (String interfaceName : interfaces) {
+                interfaceRefs.add(classRef(interfaceName));
+            }
+            int codeName = utf8("Code");
+            List<int[]> fieldRefs = new ArrayList<>();
+            for (String[] field : fields) {
+                fieldRefs.add(new int[] {utf8(field[0]), utf8(field[1])});
+            }
+            List<int[]> methodRefs = new ArrayList<>();
+            for (Code method : methods) {
+                methodRefs.add(new int[] {utf8(method.name), utf8(method.descriptor)});
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(poolCount);
+            pool.flush();
+            poolBytes.writeTo(out);
+            out.writeShort(ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaceRefs.size());
+            for (int interfaceRef : interfaceRefs) {
+                out.writeShort(interfaceRef);
+            }
+            out.writeShort(fields.size());
+            for (int[] field : fieldRefs) {
+                out.writeShort(ACC_STATIC);
+                out.writeShort(field[0]);
+                out.writeShort(field[1]);
+                out.writeShort(0);
+            }
+            out.writeShort(methods.size());
+            for (int i = 0; i < methods.size(); i ++) {
+                Code method = methods.get(i);
+                byte[] code = method.bytes();
+                out.writeShort(method.access);
+                out.writeShort(methodRefs.get(i)[0]);
+                out.writeShort(methodRefs.get(i)[1]);
+                out.writeShort(1);
+                out.writeShort(codeName);
+                out.writeInt(12 + code.length);
+                out.writeShort(method.maxStack);
+                out.writeShort(method.maxLocals);
+                out.writeInt(code.length);
+                out.write(code);
+                out.writeShort(0);
+                out.writeShort(0);
+            }
+            out.writeShort(0);
+            return bytes.toByteArray();
+        }
+        catch (IOException error) {
+            throw new UncheckedIOException(error);
+        }
+    }
+
+    // Constant pool entries are shared, keyed by their kind and contents.
+    private int entry(String key, int size, PoolWriter writer) {
+        Integer index = poolIndexes.get(key);
+        if (index != null) return index;
+        try {
+            writer.write();
+        }
+        catch (IOException error) {
+            throw new UncheckedIOException(error);
+        }
+        index = poolCount;
+        poolCount += size;
+        poolIndexes.put(key, index);
+        return index;
+    }
+
+    private interface PoolWriter {
+        void write() throws IOException;
+    }
+
+    int utf8(String value) {
+        return entry("U" + value, 1, () -> {
+            pool.writeByte(1);
+            pool.writeUTF(value);
+        });
+    }
+
+    int classRef(String internalName) {
+        int nameIndex = utf8(internalName);
+        return entry("C" + internalName, 1, () -> {
+            pool.writeByte(7);
+            pool.writeShort(nameIndex);
+        });
+    }
+
+    int string(String value) {
+        int valueIndex = utf8(value);
+        return entry("S" + value, 1, () -> {
+            pool.writeByte(8);
+            pool.writeShort(valueIndex);
+        });
+    }
+
+    int number(double value) {
+        return entry("D" + Double.doubleToRawLongBits(value), 2, () -> {
+            pool.writeByte(6);
+            pool.writeDouble(value);
+        });
+    }
+
+    private int nameAndType(String memberName, String descriptor) {
+        int nameIndex = utf8(memberName);
+        int descriptorIndex = utf8(descriptor);
+        return entry("N" + memberName + ":" + descriptor, 1, () -> {
+            pool.writeByte(12);
+            pool.writeShort(nameIndex);
+            pool.writeShort(descriptorIndex);
+        });
+    }
+
+    private int memberRef(int tag, String owner, String memberName, String descriptor) {
+        int ownerIndex = classRef(owner);
+        int nameAndTypeIndex = nameAndType(memberName, descriptor);
+        return entry(tag + owner + "." + memberName + ":" + descriptor, 1, () -> {
+            pool.writeByte(tag);
+            pool.writeShort(ownerIndex);
+            pool.writeShort(nameAndTypeIndex);
+        });
+    }
+
+    int fieldRef(String owner, String fieldName, String descriptor) {
+        return memberRef(9, owner, fieldName, descriptor);
+    }
+
+    int methodRef(String owner, String methodName, String descriptor) {
+        return memberRef(10, owner, methodName, descriptor);
+    }
+
+    // A method body. Every emit method is told how it changes the operand stack so max_stack can be tracked.
+    static final class Code {
+        private final int access;
+        private final String name;
+        private final String descriptor;
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+        private final List<Label> labels = new ArrayList<>();
+        // Each is the offset of a branch instruction and the label it jumps to.
+        private final List<int[]> branches = new ArrayList<>();
+        // -1 right after an unconditional jump, until the next label says what is on the stack.
+        private int stack = 0;
+        private int maxStack = 0;
+        private int maxLocals = 0;
+
+        private Code(int access, String name, String descriptor) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+        }
+
+        int size() {
+            return code.size();
+        }
+
+        private void adjust(int effect) {
+            stack += effect;
+            if (stack > maxStack) maxStack = stack;
+        }
+
+        void op(int opcode, int effect) {
+            code.write(opcode);
+            adjust(effect);
+        }
+
+        void op1(int opcode, int operand, int effect) {
+            code.write(opcode);
+            code.write(operand);
+            adjust(effect);
+        }
+
+        void op2(int opcode, int operand, int effect) {
+            code.write(opcode);
+            code.write(operand >> 8);
+            code.write(operand);
+            adjust(effect);
+        }
+
+        void local(int opcode, int index, int effect) {
+            op1(opcode, index, effect);
+            // Doubles take two local slots.
+            int width = opcode == Opcodes.DLOAD || opcode == Opcodes.DSTORE ? 2 : 1;
+            maxLocals = Math.max(maxLocals, index + width);
+        }
+
+        void reserveLocals(int count) {
+            maxLocals = Math.max(maxLocals, count);
+        }
+
+        Label newLabel() {
+            Label label = new Label(labels.size());
+            labels.add(label);
+            return label;
+        }
+
+        void jump(int opcode, Label target, int effect) {
+            adjust(effect);
+            target.stack = stack;
+            branches.add(new int[] {code.size(), target.id});
+            code.write(opcode);
+            code.write(0);
+            code.write(0);
+            if (opcode == Opcodes.GOTO) stack = -1;
+        }
+
+        void mark(Label label) {
+            label.offset = code.size();
+            if (stack < 0) stack = label.stack;
+        }
+
+        private byte[] bytes() {
+            byte[] bytes = code.toByteArray();
+            for (int[] branch : branches) {
+                int offset = labels.get(branch[1]).offset - branch[0];
+                bytes[branch[0] + 1] = (byte) (offset >> 8);
+                bytes[branch[0] + 2] = (byte) offset;
+            }
+            return bytes;
+        }
+    }
+
+    static final class Label {
+        private final int id;
+        private int offset = -1;
+        private int stack = 0;
+
+        private Label(int id) {
+            this.id = id;
+        }
+    }
+
+    // The opcodes the JIT uses.
+    static final class Opcodes {
+        static final int ACONST_NULL = 0x01;
+        static final int ICONST_0 = 0x03;
+        static final int ICONST_1 = 0x04;
+        static final int BIPUSH = 0x10;
+        static final int SIPUSH = 0x11;
+        static final int LDC_W = 0x13;
+        static final int LDC2_W = 0x14;
+        static final int ILOAD = 0x15;
+        static final int DLOAD = 0x18;
+        static final int ALOAD = 0x19;
+        static final int AALOAD = 0x32;
+        static final int ISTORE = 0x36;
+        static final int DSTORE = 0x39;
+        static final int ASTORE = 0x3a;
+        static final int AASTORE = 0x53;
+        static final int POP = 0x57;
+        static final int POP2 = 0x58;
+        static final int DUP = 0x59;
+        static final int DUP2 = 0x5c;
+        static final int DADD = 0x63;
+        static final int DSUB = 0x67;
+        static final int DMUL = 0x6b;
+        static final int DNEG = 0x77;
+        static final int IXOR = 0x82;
+        static final int IFEQ = 0x99;
+        static final int IFNE = 0x9a;
+        static final int GOTO = 0xa7;
+        static final int ARETURN = 0xb0;
+        static final int RETURN = 0xb1;
+        static final int GETSTATIC = 0xb2;
+        static final int INVOKESPECIAL = 0xb7;
+        static final int INVOKESTATIC = 0xb8;
+        static final int ANEWARRAY = 0xbd;
+        static final int CHECKCAST = 0xc0;
+
+        private Opcodes() {
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package com.craftinginterpreters.lox;
+
+// A Lox function that the JIT has turned into JVM bytecode.
+interface CompiledFunction {
+    // Runs the function on the arguments already in frame. Returns JitRuntime.DEOPTIMIZE, before doing anything
+    // else, if the arguments break an assumption the code was compiled under.
+    Object invoke(Interpreter interpreter, Environment frame);
+}
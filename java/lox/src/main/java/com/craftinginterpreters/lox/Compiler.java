@@ -0,0 +1,676 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.craftinginterpreters.lox.OpCode.*;
+
+// Compiles a resolved syntax tree into bytecode for the VM. Static errors have already been reported by the
+// Resolver, so this only complains about the limits of the bytecode format.
+public class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final int MAX_LOCALS = 256;
+    private static final int MAX_UPVALUES = 256;
+    private static final int MAX_CONSTANTS = 65536;
+
+    private enum FunctionType {
+        FUNCTION,
+        INITIALIZER,
+        METHOD,
+        SCRIPT
+    }
+
+    private static class Local {
+        final String name;
+        int depth;
+        boolean isCaptured = false;
+
+        Local(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private static class Upvalue {
+        final int index;
+        final boolean isLocal;
+
+        Upvalue(int index, boolean isLocal) {
+            this.index = index;
+            this.isLocal = isLocal;
+        }
+    }
+
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final ObjFunction function;
+        final FunctionType type;
+        final List<Local> locals = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        final Map<String, Integer> identifiers = new HashMap<>();
+        int scopeDepth = 0;
+        // Tracked as code is emitted so the VM knows the most stack slots a call can use.
+        int stackDepth = 1;
+
+        FunctionState(FunctionState enclosing, ObjFunction function, FunctionType type) {
+            this.enclosing = enclosing;
+            this.function = function;
+            this.type = type;
+            // Slot zero holds the function being called, or the receiver in methods.
+            locals.add(new Local(type == FunctionType.FUNCTION || type == FunctionType.SCRIPT ? "" : "this", 0));
+        }
+    }
+
+    private static class ClassState {
+        final ClassState enclosing;
+        boolean hasSuperclass = false;
+
+        ClassState(ClassState enclosing) {
+            this.enclosing = enclosing;
+        }
+    }
+
+    private final VM vm;
+    private final ErrorReporter reporter;
+    private FunctionState current;
+    private ClassState currentClass;
+    // Literals carry no token, so they are attributed to the last line seen.
+    private int line = 1;
+
+    Compiler(VM vm) {
+        this(vm, Lox.reporter);
+    }
+
+    Compiler(VM vm, ErrorReporter reporter) {
+        this.vm = vm;
+        this.reporter = reporter;
+    }
+
+    ObjFunction compile(List<Stmt> statements) {
+        current = new FunctionState(null, new ObjFunction(null), FunctionType.SCRIPT);
+        current.function.maxStack = 1;
+        currentClass = null;
+        for (Stmt statement : statements) {
+            compile(statement);
+        }
+        emitReturn();
+        return current.function;
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        line = stmt.name.line;
+        declareVariable(stmt.name);
+        emitShortOperand(OP_CLASS, identifierConstant(stmt.name));
+        defineVariable(stmt.name);
+
+        ClassState classState = new ClassState(currentClass);
+        currentClass = classState;
+
+        if (stmt.superclass != null) {
+            compile(stmt.superclass);
+            beginScope();
+            addLocal("super");
+            markInitialized();
+            loadVariable(stmt.name);
+            line = stmt.superclass.name.line;
+            emitOp(OP_INHERIT);
+            classState.hasSuperclass = true;
+        }
+
+        loadVariable(stmt.name);
+        for (Stmt.Function method : stmt.methods) {
+            FunctionType type = method.name.lexeme().equals("init") ? FunctionType.INITIALIZER : FunctionType.METHOD;
+            function(method, type);
+            emitShortOperand(OP_METHOD, identifierConstant(method.name));
+        }
+        emitOp(OP_POP);
+
+        if (classState.hasSuperclass) {
+            endScope();
+        }
+        currentClass = currentClass.enclosing;
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        if (stmt.expression instanceof Expr.Assign) {
+            Expr.Assign assign = (Expr.Assign) stmt.expression;
+            int local = resolveLocal(current, assign.name.lexeme());
+            if (local != -1) {
+                compile(assign.value);
+                line = assign.name.line;
+                emitOp(OP_STORE_LOCAL);
+                emitByte((byte) local);
+                return null;
+            }
+        }
+        compile(stmt.expression);
+        emitOp(OP_POP);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        line = stmt.name.line;
+        declareVariable(stmt.name);
+        // A function may refer to itself, so its name is usable before the body is compiled.
+        if (current.scopeDepth > 0) markInitialized();
+        function(stmt, FunctionType.FUNCTION);
+        defineVariable(stmt.name);
+        return null;
+    }
+
+    private void function(Stmt.Function stmt, FunctionType type) {
+        FunctionState state = new FunctionState(current, new ObjFunction(stmt.name.lexeme()), type);
+        current = state;
+        beginScope();
+        state.function.arity = stmt.params.size();
+        for (Token param : stmt.params) {
+            declareVariable(param);
+            markInitialized();
+        }
+        state.stackDepth += stmt.params.size();
+        state.function.maxStack = state.stackDepth;
+        for (Stmt statement : stmt.body) {
+            compile(statement);
+        }
+        emitReturn();
+        current = state.enclosing;
+
+        state.function.upvalueCount = state.upvalues.size();
+        emitShortOperand(OP_CLOSURE, makeConstant(state.function));
+        for (Upvalue upvalue : state.upvalues) {
+            emitByte(upvalue.isLocal ? (byte) 1 : (byte) 0);
+            emitByte((byte) upvalue.index);
+        }
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+        int thenJump = emitJump(OP_POP_JUMP_IF_FALSE);
+        compile(stmt.thenBranch);
+        int elseJump = emitJump(OP_JUMP);
+        patchJump(thenJump);
+        if (stmt.elseBranch != null) compile(stmt.elseBranch);
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emitOp(OP_PRINT);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        line = stmt.keyword.line;
+        if (stmt.value == null) {
+            emitReturn();
+        }
+        else {
+            compile(stmt.value);
+            emitOp(OP_RETURN);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        line = stmt.name.line;
+        declareVariable(stmt.name);
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        }
+        else {
+            emitOp(OP_NIL);
+        }
+        defineVariable(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = current.function.chunk.count;
+        compile(stmt.condition);
+        int exitJump = emitJump(OP_POP_JUMP_IF_FALSE);
+        compile(stmt.body);
+        emitLoop(loopStart);
+        patchJump(exitJump);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        line = expr.name.line;
+        storeVariable(expr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case BANG_EQUAL: emitOp(OP_NOT_EQUAL); break;
+            case EQUAL_EQUAL: emitOp(OP_EQUAL); break;
+            case GREATER: emitOp(OP_GREATER); break;
+            case GREATER_EQUAL: emitOp(OP_GREATER_EQUAL); break;
+            case LESS: emitOp(OP_LESS); break;
+            case LESS_EQUAL: emitOp(OP_LESS_EQUAL); break;
+            case PLUS: emitOp(OP_ADD); break;
+            case MINUS: emitOp(OP_SUBTRACT); break;
+            case STAR: emitOp(OP_MULTIPLY); break;
+            case SLASH: emitOp(OP_DIVIDE); break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        if (expr.callee instanceof Expr.Get) {
+            // obj.method(args) invokes the method directly without creating a bound method.
+            Expr.Get get = (Expr.Get) expr.callee;
+            compile(get.object);
+            compileArguments(expr.arguments);
+            line = expr.paren.line;
+            emitShortOperand(OP_INVOKE, identifierConstant(get.name));
+            emitByte((byte) expr.arguments.size());
+            current.stackDepth -= expr.arguments.size();
+            return null;
+        }
+        if (expr.callee instanceof Expr.Super) {
+            Expr.Super superExpr = (Expr.Super) expr.callee;
+            loadVariable(superExpr.keyword, "this");
+            compileArguments(expr.arguments);
+            loadVariable(superExpr.keyword, "super");
+            line = expr.paren.line;
+            emitShortOperand(OP_SUPER_INVOKE, identifierConstant(superExpr.method));
+            emitByte((byte) expr.arguments.size());
+            current.stackDepth -= expr.arguments.size();
+            return null;
+        }
+        compile(expr.callee);
+        compileArguments(expr.arguments);
+        line = expr.paren.line;
+        emitOp(OP_CALL);
+        emitByte((byte) expr.arguments.size());
+        current.stackDepth -= expr.arguments.size();
+        return null;
+    }
+
+    private void compileArguments(List<Expr> arguments) {
+        for (Expr argument : arguments) {
+            compile(argument);
+        }
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        line = expr.name.line;
+        emitShortOperand(OP_GET_PROPERTY, identifierConstant(expr.name));
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    // The VM has its own calling convention, so an inlined call is compiled as the call it stands for.
+    @Override
+    public Void visitInlineExpr(Expr.Inline expr) {
+        compile(expr.call);
+        return null;
+    }
+
+    // The VM evaluates a loop-invariant expression every time, as written.
+    @Override
+    public Void visitInvariantExpr(Expr.Invariant expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emitOp(OP_NIL);
+        }
+        else if (expr.value.equals(Boolean.TRUE)) {
+            emitOp(OP_TRUE);
+        }
+        else if (expr.value.equals(Boolean.FALSE)) {
+            emitOp(OP_FALSE);
+        }
+        else {
+            emitShortOperand(OP_CONSTANT, makeConstant(expr.value));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicExpr(Expr.Logic expr) {
+        compile(expr.left);
+        if (expr.operator.type == TokenType.OR) {
+            int elseJump = emitJump(OP_JUMP_IF_FALSE);
+            int endJump = emitJump(OP_JUMP);
+            patchJump(elseJump);
+            emitOp(OP_POP);
+            compile(expr.right);
+            patchJump(endJump);
+        }
+        else {
+            int endJump = emitJump(OP_JUMP_IF_FALSE);
+            emitOp(OP_POP);
+            compile(expr.right);
+            patchJump(endJump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        compile(expr.value);
+        line = expr.name.line;
+        emitShortOperand(OP_SET_PROPERTY, identifierConstant(expr.name));
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        line = expr.keyword.line;
+        loadVariable(expr.keyword, "this");
+        loadVariable(expr.keyword, "super");
+        line = expr.method.line;
+        emitShortOperand(OP_GET_SUPER, identifierConstant(expr.method));
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        line = expr.keyword.line;
+        loadVariable(expr.keyword);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case BANG: emitOp(OP_NOT); break;
+            case MINUS: emitOp(OP_NEGATE); break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        line = expr.name.line;
+        loadVariable(expr.name);
+        return null;
+    }
+
+    private void loadVariable(Token name) {
+        namedVariable(name, name.lexeme(), false);
+    }
+
+    private void loadVariable(Token token, String name) {
+        namedVariable(token, name, false);
+    }
+
+    private void storeVariable(Token name) {
+        namedVariable(name, name.lexeme(), true);
+    }
+
+    private void namedVariable(Token token, String name, boolean assign) {
+        byte getOp;
+        byte setOp;
+        int arg = resolveLocal(current, name);
+        if (arg != -1) {
+            getOp = OP_GET_LOCAL;
+            setOp = OP_SET_LOCAL;
+        }
+        else if ((arg = resolveUpvalue(current, token, name)) != -1) {
+            getOp = OP_GET_UPVALUE;
+            setOp = OP_SET_UPVALUE;
+        }
+        else {
+            emitShortOperand(assign ? OP_SET_GLOBAL : OP_GET_GLOBAL, globalSlot(token, name));
+            return;
+        }
+        emitOp(assign ? setOp : getOp);
+        emitByte((byte) arg);
+    }
+
+    private int resolveLocal(FunctionState state, String name) {
+        for (int i = state.locals.size() - 1; i >= 0; i --) {
+            if (state.locals.get(i).name.equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int resolveUpvalue(FunctionState state, Token token, String name) {
+        if (state.enclosing == null) return -1;
+        int local = resolveLocal(state.enclosing, name);
+        if (local != -1) {
+            state.enclosing.locals.get(local).isCaptured = true;
+            return addUpvalue(state, token, local, true);
+        }
+        int upvalue = resolveUpvalue(state.enclosing, token, name);
+        if (upvalue != -1) {
+            return addUpvalue(state, token, upvalue, false);
+        }
+        return -1;
+    }
+
+    private int addUpvalue(FunctionState state, Token token, int index, boolean isLocal) {
+        for (int i = 0; i < state.upvalues.size(); i ++) {
+            Upvalue upvalue = state.upvalues.get(i);
+            if (upvalue.index == index && upvalue.isLocal == isLocal) {
+                return i;
+            }
+        }
+        if (state.upvalues.size() == MAX_UPVALUES) {
+            reporter.error(token, "Too many closure variables in function.");
+            return 0;
+        }
+        state.upvalues.add(new Upvalue(index, isLocal));
+        return state.upvalues.size() - 1;
+    }
+
+    private void declareVariable(Token name) {
+        if (current.scopeDepth == 0) return;
+        if (current.locals.size() == MAX_LOCALS) {
+            reporter.error(name, "Too many local variables in function.");
+            return;
+        }
+        // Uninitialized until defineVariable(), though the Resolver already rejects reads in the initializer.
+        current.locals.add(new Local(name.lexeme(), -1));
+    }
+
+    private void addLocal(String name) {
+        current.locals.add(new Local(name, -1));
+    }
+
+    private void markInitialized() {
+        if (current.scopeDepth == 0) return;
+        current.locals.get(current.locals.size() - 1).depth = current.scopeDepth;
+    }
+
+    private void defineVariable(Token name) {
+        if (current.scopeDepth > 0) {
+            markInitialized();
+            return;
+        }
+        emitShortOperand(OP_DEFINE_GLOBAL, globalSlot(name, name.lexeme()));
+    }
+
+    private int globalSlot(Token token, String name) {
+        int slot = vm.globalSlot(name);
+        if (slot > 0xffff) {
+            reporter.error(token, "Too many global variables.");
+            return 0;
+        }
+        return slot;
+    }
+
+    private void beginScope() {
+        current.scopeDepth ++;
+    }
+
+    private void endScope() {
+        current.scopeDepth --;
+        List<Local> locals = current.locals;
+        while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > current.scopeDepth) {
+            emitOp(locals.get(locals.size() - 1).isCaptured ? OP_CLOSE_UPVALUE : OP_POP);
+            locals.remove(locals.size() - 1);
+        }
+    }
+
+    private int identifierConstant(Token name) {
+        return identifierConstant(name.lexeme());
+    }
+
+    private int identifierConstant(String name) {
+        Integer index = current.identifiers.get(name);
+        if (index != null) return index;
+        int constant = makeConstant(name);
+        current.identifiers.put(name, constant);
+        return constant;
+    }
+
+    private int makeConstant(Object value) {
+        Chunk chunk = current.function.chunk;
+        if (chunk.constantCount == MAX_CONSTANTS) {
+            reporter.error(line, "Too many constants in one chunk.");
+            return 0;
+        }
+        return chunk.addConstant(value);
+    }
+
+    private void emitByte(byte b) {
+        current.function.chunk.write(b, line);
+    }
+
+    private void emitOp(byte op) {
+        emitByte(op);
+        current.stackDepth += stackEffect(op);
+        if (current.stackDepth > current.function.maxStack) {
+            current.function.maxStack = current.stackDepth;
+        }
+    }
+
+    // How many values an instruction leaves on the stack, less the ones it consumes. Calls depend on their
+    // argument count, so their callers adjust for that.
+    private static int stackEffect(byte op) {
+        switch (op) {
+            case OP_CONSTANT:
+            case OP_NIL:
+            case OP_TRUE:
+            case OP_FALSE:
+            case OP_GET_LOCAL:
+            case OP_GET_GLOBAL:
+            case OP_GET_UPVALUE:
+            case OP_CLOSURE:
+            case OP_CLASS:
+                return 1;
+            case OP_POP:
+            case OP_DEFINE_GLOBAL:
+            case OP_SET_PROPERTY:
+            case OP_GET_SUPER:
+            case OP_EQUAL:
+            case OP_NOT_EQUAL:
+            case OP_GREATER:
+            case OP_GREATER_EQUAL:
+            case OP_LESS:
+            case OP_LESS_EQUAL:
+            case OP_ADD:
+            case OP_SUBTRACT:
+            case OP_MULTIPLY:
+            case OP_DIVIDE:
+            case OP_PRINT:
+            case OP_CLOSE_UPVALUE:
+            case OP_RETURN:
+            case OP_INHERIT:
+            case OP_METHOD:
+            case OP_SUPER_INVOKE:
+            case OP_POP_JUMP_IF_FALSE:
+            case OP_STORE_LOCAL:
+                return -1;
+            default:
+                return 0;
+        }
+    }
+
+    private void emitShortOperand(byte op, int operand) {
+        emitOp(op);
+        emitByte((byte) ((operand >> 8) & 0xff));
+        emitByte((byte) (operand & 0xff));
+    }
+
+    private int emitJump(byte op) {
+        emitShortOperand(op, 0xffff);
+        return current.function.chunk.count - 2;
+    }
+
+    private void patchJump(int offset) {
+        Chunk chunk = current.function.chunk;
+        // -2 to adjust for the bytecode for the jump offset itself.
+        int jump = chunk.count - offset - 2;
+        if (jump > 0xffff) {
+            reporter.error(line, "Too much code to jump over.");
+        }
+        chunk.code[offset] = (byte) ((jump >> 8) & 0xff);
+        chunk.code[offset + 1] = (byte) (jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart) {
+        int offset = current.function.chunk.count - loopStart + 3;
+        if (offset > 0xffff) {
+            reporter.error(line, "Loop body too large.");
+        }
+        emitShortOperand(OP_LOOP, offset);
+    }
+
+    private void emitReturn() {
+        if (current.type == FunctionType.INITIALIZER) {
+            emitOp(OP_GET_LOCAL);
+            emitByte((byte) 0);
+        }
+        else {
+            emitOp(OP_NIL);
+        }
+        emitOp(OP_RETURN);
+    }
+}
@@ -1,61 +1,153 @@
 package com.craftinginterpreters.lox;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 public class Environment {
-    final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    // What the closure running here captured.
+    final Object[] upvalues;
+    // Globals are keyed by name. Everything else lives in the array-backed frame of a call, or in the single frame
+    // of top-level code, indexed by the slot the Resolver assigned; blocks share the frame they are in.
+    private final Map<String, Object> values;
+    private Object[] slots;
+    private int count = 0;
+    // A slot holding UNBOXED keeps its value in the parallel numbers array instead, so numeric code running in
+    // specializing mode can store doubles without allocating a Double for each one.
+    static final Object UNBOXED = new Object();
+    private double[] numbers;
+
+    private static final Object[] NO_UPVALUES = new Object[0];
 
     Environment() {
-        enclosing = null;
+        upvalues = NO_UPVALUES;
+        values = new HashMap<>();
+    }
+
+    // A frame for top-level code, which captures nothing. The sizes come from the Resolver, which knows how many
+    // slots each block needs; the frame is grown with reserve() if a later one needs more.
+    Environment(int size) {
+        this(NO_UPVALUES, size);
     }
 
-    Environment(Environment enclosing) {
-        this.enclosing = enclosing;
+    // The frame of a call. Everything the function uses from outside is either global or one of its upvalues.
+    Environment(Object[] upvalues, int size) {
+        this.upvalues = upvalues;
+        values = null;
+        slots = new Object[size];
     }
 
+    // Defines a global, or fills in the next slot of a frame that is being set up for a call.
     void define(String name, Object value) {
-        values.put(name, value);
+        if (values != null) {
+            values.put(name, value);
+            return;
+        }
+        // The receiver and parameters are defined in the same order the Resolver declared them, so the next
+        // free slot is theirs.
+        if (count == slots.length) {
+            grow();
+        }
+        slots[count ++] = value;
+    }
+
+    void defineNumber(double value) {
+        if (count == slots.length) {
+            grow();
+        }
+        if (numbers == null) {
+            numbers = new double[slots.length];
+        }
+        numbers[count] = value;
+        slots[count ++] = UNBOXED;
     }
 
-    Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+    // Makes room for at least size slots, keeping what the frame already holds.
+    void reserve(int size) {
+        if (size <= slots.length) return;
+        slots = Arrays.copyOf(slots, size);
+        if (numbers != null) {
+            numbers = Arrays.copyOf(numbers, size);
+        }
     }
 
-    Environment ancestor(int distance) {
-        Environment environment = this;
-        for (int i = 0; i < distance; i ++) {
-            environment = environment.enclosing;
+    private void grow() {
+        int capacity = Math.max(4, count * 2);
+        slots = Arrays.copyOf(slots, capacity);
+        if (numbers != null) {
+            numbers = Arrays.copyOf(numbers, capacity);
         }
-        return environment;
     }
 
-    void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+    Object getAt(int slot) {
+        Object value = slots[slot];
+        if (value == UNBOXED) {
+            return numbers[slot];
+        }
+        return value;
     }
 
+    boolean holdsNumber(int slot) {
+        return slots[slot] == UNBOXED || slots[slot] instanceof Double;
+    }
 
-    Object get(Token name) {
-        if(values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
+    double getNumberAt(int slot) {
+        Object value = slots[slot];
+        if (value == UNBOXED) {
+            return numbers[slot];
         }
-        if (enclosing != null) {
-            return enclosing.get(name);
+        if (value instanceof Double) {
+            return (double) value;
         }
-        throw new RuntimeError(name, "Undefined variable'" + name.lexeme + "'.");
+        throw new UnexpectedValue(value);
     }
 
-    void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            return;
+    // Moves a variable that closures capture into a cell, for parameters, which are defined before the body runs.
+    void box(int slot) {
+        slots[slot] = new Cell(getAt(slot));
+    }
+
+    // Collects the upvalues of a closure made here. The declaration's upvalues come in pairs: 1 and the slot of
+    // a local in this frame, or 0 and the index of one of this function's own upvalues. A captured variable's
+    // slot holds its cell, so the cell is what is shared; "this" and "super" are never assigned and are copied
+    // as they are.
+    Object[] capture(int[] upvalues) {
+        if (upvalues.length == 0) return NO_UPVALUES;
+        Object[] captured = new Object[upvalues.length / 2];
+        for (int i = 0; i < captured.length; i ++) {
+            int index = upvalues[2 * i + 1];
+            captured[i] = upvalues[2 * i] == 1 ? slots[index] : this.upvalues[index];
+        }
+        return captured;
+    }
+
+    // Also how a local is declared: a block that runs again, as a loop body does, reuses its slots.
+    void assignAt(int slot, Object value) {
+        slots[slot] = value;
+    }
+
+    void assignNumberAt(int slot, double value) {
+        if (numbers == null) {
+            numbers = new double[slots.length];
         }
-        if (enclosing != null) {
-            enclosing.assign(name, value);
+        numbers[slot] = value;
+        slots[slot] = UNBOXED;
+    }
+
+
+    Object get(Token name) {
+        if(values.containsKey(name.lexeme())) {
+            return values.get(name.lexeme());
+        }
+        throw new RuntimeError(name, "Undefined variable'" + name.lexeme() + "'.");
+    }
+
+    void assign(Token name, Object value) {
+        if (values.containsKey(name.lexeme())) {
+            values.put(name.lexeme(), value);
             return;
         }
 
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+        throw new RuntimeError(name, "Undefined variable '" + name.lexeme() + "'.");
     }
 }
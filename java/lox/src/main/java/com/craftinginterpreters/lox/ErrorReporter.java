@@ -0,0 +1,60 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Where the errors found while running one script go. Each stage of the pipeline reports to the ErrorReporter
+// it was given, so scripts handled at the same time each keep their own errors apart.
+class ErrorReporter {
+    // Null when the errors are collected in diagnostics instead of printed.
+    private final OutputSink out;
+    private final List<String> diagnostics = new ArrayList<>();
+    boolean hadError = false;
+    boolean hadRuntimeError = false;
+
+    ErrorReporter(OutputSink out) {
+        this.out = out;
+    }
+
+    static ErrorReporter collecting() {
+        return new ErrorReporter(null);
+    }
+
+    List<String> diagnostics() {
+        return diagnostics;
+    }
+
+    void error(int line, String message) {
+        report(line, "", message);
+    }
+
+    void error(Token token, String message) {
+        if(token.type == TokenType.EOF) {
+            report(token.line, " at end", message);
+        }
+        else {
+            report(token.line, " at '" + token.lexeme() + "'", message);
+        }
+    }
+
+    private void report(int line, String where, String message) {
+        emit("[line ]" + line + "] Error " + where + ": " + message);
+        hadError = true;
+    }
+
+    void runtimeError(RuntimeError error) {
+        // Two lines, and so two calls: a sink gets one line at a time.
+        emit(error.getMessage());
+        emit("[line " + error.line + "]");
+        hadRuntimeError = true;
+    }
+
+    private void emit(String diagnostic) {
+        if (out != null) {
+            out.println(diagnostic);
+        }
+        else {
+            diagnostics.add(diagnostic);
+        }
+    }
+}
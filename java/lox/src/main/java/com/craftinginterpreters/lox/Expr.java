@@ -10,6 +10,8 @@ abstract class Expr {
         R visitCallExpr(Call expr);
         R visitGetExpr(Get expr);
         R visitGroupingExpr(Grouping expr);
+        R visitInlineExpr(Inline expr);
+        R visitInvariantExpr(Invariant expr);
         R visitLiteralExpr(Literal expr);
         R visitLogicExpr(Logic expr);
         R visitSetExpr(Set expr);
@@ -27,6 +29,9 @@ abstract class Expr {
 
         final Token name;
         final Expr value;
+        int slot = -1;
+        int upvalue = -1;
+        boolean captured;
 
         @Override
         <R> R accept(Visitor<R> visitor) {
@@ -44,6 +49,7 @@ abstract class Expr {
         final Expr left;
         final Token operator;
         final Expr right;
+        BinaryOp op = BinaryOp.UNINITIALIZED;
 
         @Override
         <R> R accept(Visitor<R> visitor) {
@@ -61,6 +67,7 @@ abstract class Expr {
         final Expr callee;
         final Token paren;
         final List<Expr> arguments;
+        Linker.CallSite site;
 
         @Override
         <R> R accept(Visitor<R> visitor) {
@@ -76,6 +83,8 @@ abstract class Expr {
 
         final Expr object;
         final Token name;
+        PropertyCache cache = new PropertyCache();
+        Linker.GetSite site;
 
         @Override
         <R> R accept(Visitor<R> visitor) {
@@ -96,6 +105,39 @@ abstract class Expr {
         }
     }
 
+    static class Inline extends Expr {
+        Inline(Expr.Call call, int base, List<Stmt> body) {
+            this.call = call;
+            this.base = base;
+            this.body = body;
+        }
+
+        final Expr.Call call;
+        final int base;
+        final List<Stmt> body;
+        Stmt.Function declaration;
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitInlineExpr(this);
+        }
+    }
+
+    static class Invariant extends Expr {
+        Invariant(Expr expression, int slot) {
+            this.expression = expression;
+            this.slot = slot;
+        }
+
+        final Expr expression;
+        final int slot;
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitInvariantExpr(this);
+        }
+    }
+
     static class Literal extends Expr {
         Literal(Object value) {
             this.value = value;
@@ -136,6 +178,8 @@ abstract class Expr {
         final Expr object;
         final Token name;
         final Expr value;
+        PropertyCache cache = new PropertyCache();
+        Linker.SetSite site;
 
         @Override
         <R> R accept(Visitor<R> visitor) {
@@ -151,6 +195,8 @@ abstract class Expr {
 
         final Token keyword;
         final Token method;
+        int upvalue = -1;
+        Expr.This receiver;
 
         @Override
         <R> R accept(Visitor<R> visitor) {
@@ -164,6 +210,8 @@ abstract class Expr {
         }
 
         final Token keyword;
+        int slot = -1;
+        int upvalue = -1;
 
         @Override
         <R> R accept(Visitor<R> visitor) {
@@ -179,6 +227,7 @@ abstract class Expr {
 
         final Token operator;
         final Expr right;
+        UnaryOp op = UnaryOp.UNINITIALIZED;
 
         @Override
         <R> R accept(Visitor<R> visitor) {
@@ -192,6 +241,9 @@ abstract class Expr {
         }
 
         final Token name;
+        int slot = -1;
+        int upvalue = -1;
+        boolean captured;
 
         @Override
         <R> R accept(Visitor<R> visitor) {
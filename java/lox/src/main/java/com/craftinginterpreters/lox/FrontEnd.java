@@ -0,0 +1,82 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+// Scans, parses and resolves many independent scripts at once, one fork/join task per script. Each script gets
+// its own Scanner, Parser, Resolver and ErrorReporter, so the tasks share nothing and the front end scales with
+// the number of cores.
+final class FrontEnd {
+    private FrontEnd() {
+    }
+
+    // A script ready to run, unless errors.hadError is set.
+    static final class Unit {
+        final Path path;
+        final List<Stmt> statements;
+        final ErrorReporter errors;
+
+        Unit(Path path, List<Stmt> statements, ErrorReporter errors) {
+            this.path = path;
+            this.statements = statements;
+            this.errors = errors;
+        }
+    }
+
+    // The units come back in the same order as the paths. The cache, if there is one, is consulted and filled the
+    // same way it is for a single script.
+    static List<Unit> compile(List<Path> paths, ForkJoinPool pool, AstCache cache) {
+        List<RecursiveTask<Unit>> tasks = new ArrayList<>();
+        for (Path path : paths) {
+            tasks.add(new RecursiveTask<>() {
+                @Override
+                protected Unit compute() {
+                    return compile(path, cache);
+                }
+            });
+        }
+        return pool.invoke(new RecursiveTask<>() {
+            @Override
+            protected List<Unit> compute() {
+                ForkJoinTask.invokeAll(tasks);
+                List<Unit> units = new ArrayList<>();
+                for (RecursiveTask<Unit> task : tasks) {
+                    units.add(task.join());
+                }
+                return units;
+            }
+        });
+    }
+
+    static Unit compile(Path path, AstCache cache) {
+        ErrorReporter errors = ErrorReporter.collecting();
+        Source source;
+        try {
+            source = Source.map(path);
+        }
+        catch (IOException error) {
+            throw new UncheckedIOException(error);
+        }
+        String hash = null;
+        if (cache != null) {
+            hash = source.hash();
+            List<Stmt> cached = cache.load(hash);
+            if (cached != null) return new Unit(path, cached, errors);
+        }
+        List<Stmt> statements = new Parser(new Scanner(source, errors), errors).parse();
+        if (!errors.hadError) {
+            new Resolver(errors).resolve(statements);
+        }
+        if (!errors.hadError) {
+            statements = Optimizer.optimize(statements);
+            if (cache != null) cache.store(hash, statements);
+        }
+        return new Unit(path, statements, errors);
+    }
+}
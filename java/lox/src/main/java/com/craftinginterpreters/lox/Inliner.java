@@ -0,0 +1,683 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Replaces calls to small global functions with a copy of the function's body, run in the caller's frame. Only
+// a function declared once at the top level of the script, never assigned to, that declares no functions or
+// classes of its own and never refers to itself by name is inlined, and only if its body has no more nodes than
+// the budget.
+//
+// None of that stops another script from rebinding the global before the call runs, so every inlined call keeps
+// the call it replaced. The Interpreter runs the copied body only while the global still holds the function the
+// body came from, and makes the call otherwise.
+//
+// The copy's locals, parameters first, get slots of their own past the end of the frame the call runs in, which
+// grows to make room. A call in top-level code is inlined only inside a block, which can be given a frame;
+// outside one there is nowhere for the copy's locals to go.
+final class Inliner implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    // In syntax tree nodes: enough for an accessor, abs() or max(), not for a loop of any size.
+    static final int DEFAULT_BUDGET = 16;
+
+    private final Map<String, Stmt.Function> candidates;
+    private final List<Expr.Inline> sites = new ArrayList<>();
+    // Functions rebuilt because something was inlined into them, by the declaration they replace.
+    private final Map<Stmt.Function, Stmt.Function> rebuilt = new IdentityHashMap<>();
+
+    // The frame the code being rewritten runs in: the one of the innermost function, or of the innermost block
+    // in top-level code that has one. frameSize is how many slots it needs so far.
+    private boolean framed = false;
+    private int frameSize;
+
+    static List<Stmt> inline(List<Stmt> statements, int budget) {
+        Map<String, Stmt.Function> candidates = candidates(statements, budget);
+        if (candidates.isEmpty()) return statements;
+        Inliner inliner = new Inliner(candidates);
+        List<Stmt> inlined = inliner.rewriteAll(statements);
+        // A site runs its copy when the global holds the declaration that will actually be executed, which is
+        // the rebuilt one if anything was inlined into the callee in turn.
+        for (Expr.Inline site : inliner.sites) {
+            site.declaration = inliner.rebuilt.getOrDefault(site.declaration, site.declaration);
+        }
+        return inlined;
+    }
+
+    private Inliner(Map<String, Stmt.Function> candidates) {
+        this.candidates = candidates;
+    }
+
+    private static Map<String, Stmt.Function> candidates(List<Stmt> statements, int budget) {
+        Map<String, Stmt.Function> functions = new HashMap<>();
+        Set<String> excluded = new HashSet<>();
+        for (Stmt statement : statements) {
+            String name = globalDeclared(statement);
+            if (name == null) continue;
+            if (statement instanceof Stmt.Function && !functions.containsKey(name)) {
+                functions.put(name, (Stmt.Function) statement);
+            }
+            else {
+                excluded.add(name);
+            }
+        }
+        Scan program = new Scan();
+        program.scanAll(statements);
+        excluded.addAll(program.assigned);
+
+        Map<String, Stmt.Function> candidates = new HashMap<>();
+        for (Map.Entry<String, Stmt.Function> entry : functions.entrySet()) {
+            if (excluded.contains(entry.getKey())) continue;
+            Scan body = new Scan();
+            body.scanAll(entry.getValue().body);
+            if (body.size <= budget && !body.declares && !body.read.contains(entry.getKey())) {
+                candidates.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return candidates;
+    }
+
+    // The name of the global a top-level statement declares, if it declares one.
+    private static String globalDeclared(Stmt statement) {
+        if (statement instanceof Stmt.Function && ((Stmt.Function) statement).slot < 0) {
+            return ((Stmt.Function) statement).name.lexeme();
+        }
+        if (statement instanceof Stmt.Var && ((Stmt.Var) statement).slot < 0) {
+            return ((Stmt.Var) statement).name.lexeme();
+        }
+        if (statement instanceof Stmt.Class && ((Stmt.Class) statement).slot < 0) {
+            return ((Stmt.Class) statement).name.lexeme();
+        }
+        return null;
+    }
+
+    private List<Stmt> rewriteAll(List<Stmt> statements) {
+        List<Stmt> rewritten = new ArrayList<>(statements.size());
+        boolean changed = false;
+        for (Stmt statement : statements) {
+            Stmt result = statement.accept(this);
+            rewritten.add(result);
+            changed |= result != statement;
+        }
+        return changed ? rewritten : statements;
+    }
+
+    private Expr rewrite(Expr expr) {
+        return expr.accept(this);
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = rewrite(expr.value);
+        if (value == expr.value) return expr;
+        Expr.Assign assign = new Expr.Assign(expr.name, value);
+        assign.slot = expr.slot;
+        assign.upvalue = expr.upvalue;
+        assign.captured = expr.captured;
+        return assign;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr callee = rewrite(expr.callee);
+        List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+        boolean changed = callee != expr.callee;
+        for (Expr argument : expr.arguments) {
+            Expr result = rewrite(argument);
+            arguments.add(result);
+            changed |= result != argument;
+        }
+        Expr.Call call = changed ? new Expr.Call(callee, expr.paren, arguments) : expr;
+
+        if (!framed || !(callee instanceof Expr.Variable)) return call;
+        Expr.Variable variable = (Expr.Variable) callee;
+        if (variable.slot >= 0 || variable.upvalue >= 0) return call;
+        Stmt.Function declaration = candidates.get(variable.name.lexeme());
+        // A call with the wrong number of arguments is left to fail the way it always would.
+        if (declaration == null || declaration.params.size() != arguments.size()) return call;
+
+        int base = frameSize;
+        frameSize += declaration.frameSize;
+        Expr.Inline inline = new Expr.Inline(call, base, new Copy(base).copyAll(declaration.body));
+        inline.declaration = declaration;
+        sites.add(inline);
+        return inline;
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        Expr object = rewrite(expr.object);
+        if (object == expr.object) return expr;
+        return new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr expression = rewrite(expr.expression);
+        if (expression == expr.expression) return expr;
+        return new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitInlineExpr(Expr.Inline expr) {
+        return expr;
+    }
+
+    // Loop-invariant expressions make no calls.
+    @Override
+    public Expr visitInvariantExpr(Expr.Invariant expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicExpr(Expr.Logic expr) {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Logic(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        Expr object = rewrite(expr.object);
+        Expr value = rewrite(expr.value);
+        if (object == expr.object && value == expr.value) return expr;
+        return new Expr.Set(object, expr.name, value);
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = rewrite(expr.right);
+        if (right == expr.right) return expr;
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    // A block with a frame of its own, which in top-level code is the outermost one, is where the calls inside it
+    // run, so their copies' locals go in its frame. One that had no frame is given one if anything is inlined
+    // into it.
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        if (framed && !stmt.scoped) {
+            List<Stmt> statements = rewriteAll(stmt.statements);
+            if (statements == stmt.statements) return stmt;
+            Stmt.Block block = new Stmt.Block(statements);
+            block.scoped = false;
+            block.frameSize = stmt.frameSize;
+            return block;
+        }
+        boolean enclosingFramed = framed;
+        int enclosingFrameSize = frameSize;
+        framed = true;
+        frameSize = stmt.scoped ? stmt.frameSize : 0;
+        List<Stmt> statements = rewriteAll(stmt.statements);
+        int size = frameSize;
+        framed = enclosingFramed;
+        frameSize = enclosingFrameSize;
+        if (statements == stmt.statements) return stmt;
+        Stmt.Block block = new Stmt.Block(statements);
+        block.scoped = stmt.scoped || size > 0;
+        block.frameSize = size;
+        return block;
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        List<Stmt.Function> methods = new ArrayList<>(stmt.methods.size());
+        boolean changed = false;
+        for (Stmt.Function method : stmt.methods) {
+            Stmt.Function result = (Stmt.Function) visitFunctionStmt(method);
+            methods.add(result);
+            changed |= result != method;
+        }
+        if (!changed) return stmt;
+        Stmt.Class klass = new Stmt.Class(stmt.name, stmt.superclass, methods);
+        klass.slot = stmt.slot;
+        klass.superSlot = stmt.superSlot;
+        klass.captured = stmt.captured;
+        return klass;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = rewrite(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        boolean enclosingFramed = framed;
+        int enclosingFrameSize = frameSize;
+        framed = true;
+        frameSize = stmt.frameSize;
+        List<Stmt> body = rewriteAll(stmt.body);
+        int size = frameSize;
+        framed = enclosingFramed;
+        frameSize = enclosingFrameSize;
+        if (body == stmt.body) return stmt;
+
+        Stmt.Function function = new Stmt.Function(stmt.name, stmt.params, body);
+        function.slot = stmt.slot;
+        function.frameSize = size;
+        function.upvalues = stmt.upvalues;
+        function.capturedSlots = stmt.capturedSlots;
+        function.captured = stmt.captured;
+        rebuilt.put(stmt, function);
+        return function;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = rewrite(stmt.condition);
+        Stmt thenBranch = stmt.thenBranch.accept(this);
+        Stmt elseBranch = stmt.elseBranch == null ? null : stmt.elseBranch.accept(this);
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch) return stmt;
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = rewrite(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) return stmt;
+        Expr value = rewrite(stmt.value);
+        if (value == stmt.value) return stmt;
+        return new Stmt.Return(stmt.keyword, value);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) return stmt;
+        Expr initializer = rewrite(stmt.initializer);
+        if (initializer == stmt.initializer) return stmt;
+        Stmt.Var var = new Stmt.Var(stmt.name, initializer);
+        var.slot = stmt.slot;
+        var.captured = stmt.captured;
+        return var;
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = rewrite(stmt.condition);
+        Stmt body = stmt.body.accept(this);
+        if (condition == stmt.condition && body == stmt.body) return stmt;
+        Stmt.While loop = new Stmt.While(condition, body);
+        loop.invariants = stmt.invariants;
+        return loop;
+    }
+
+    // Sizes up a function body, or finds the globals a whole script assigns to.
+    private static final class Scan implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        int size = 0;
+        boolean declares = false;
+        final Set<String> read = new HashSet<>();
+        final Set<String> assigned = new HashSet<>();
+
+        void scanAll(List<Stmt> statements) {
+            for (Stmt statement : statements) {
+                scan(statement);
+            }
+        }
+
+        private void scan(Stmt stmt) {
+            if (stmt == null) return;
+            size ++;
+            stmt.accept(this);
+        }
+
+        private void scan(Expr expr) {
+            if (expr == null) return;
+            size ++;
+            expr.accept(this);
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            if (expr.slot < 0 && expr.upvalue < 0) assigned.add(expr.name.lexeme());
+            scan(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            scan(expr.left);
+            scan(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            scan(expr.callee);
+            for (Expr argument : expr.arguments) {
+                scan(argument);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            scan(expr.object);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            scan(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitInlineExpr(Expr.Inline expr) {
+            scan(expr.call);
+            return null;
+        }
+
+        @Override
+        public Void visitInvariantExpr(Expr.Invariant expr) {
+            scan(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitLogicExpr(Expr.Logic expr) {
+            scan(expr.left);
+            scan(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            scan(expr.object);
+            scan(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            scan(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            if (expr.slot < 0 && expr.upvalue < 0) read.add(expr.name.lexeme());
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            scanAll(stmt.statements);
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            declares = true;
+            scanAll(new ArrayList<>(stmt.methods));
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            scan(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            declares = true;
+            scanAll(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            scan(stmt.condition);
+            scan(stmt.thenBranch);
+            scan(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            scan(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            scan(stmt.value);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            scan(stmt.initializer);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            scan(stmt.condition);
+            scan(stmt.body);
+            return null;
+        }
+    }
+
+    // Copies the body of a function being inlined, moving its locals up by base. Inlined functions declare no
+    // functions or classes and run outside any class, so their bodies hold nothing that refers to an enclosing
+    // function or a receiver.
+    private static final class Copy implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+        private final int base;
+
+        Copy(int base) {
+            this.base = base;
+        }
+
+        List<Stmt> copyAll(List<Stmt> statements) {
+            List<Stmt> copies = new ArrayList<>(statements.size());
+            for (Stmt statement : statements) {
+                copies.add(statement.accept(this));
+            }
+            return copies;
+        }
+
+        private Expr copy(Expr expr) {
+            return expr == null ? null : expr.accept(this);
+        }
+
+        private Stmt copy(Stmt stmt) {
+            return stmt == null ? null : stmt.accept(this);
+        }
+
+        private int slot(int slot) {
+            return slot < 0 ? slot : slot + base;
+        }
+
+        @Override
+        public Expr visitAssignExpr(Expr.Assign expr) {
+            Expr.Assign assign = new Expr.Assign(expr.name, copy(expr.value));
+            assign.slot = slot(expr.slot);
+            return assign;
+        }
+
+        @Override
+        public Expr visitBinaryExpr(Expr.Binary expr) {
+            return new Expr.Binary(copy(expr.left), expr.operator, copy(expr.right));
+        }
+
+        @Override
+        public Expr visitCallExpr(Expr.Call expr) {
+            List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+            for (Expr argument : expr.arguments) {
+                arguments.add(copy(argument));
+            }
+            return new Expr.Call(copy(expr.callee), expr.paren, arguments);
+        }
+
+        @Override
+        public Expr visitGetExpr(Expr.Get expr) {
+            return new Expr.Get(copy(expr.object), expr.name);
+        }
+
+        @Override
+        public Expr visitGroupingExpr(Expr.Grouping expr) {
+            return new Expr.Grouping(copy(expr.expression));
+        }
+
+        // Bodies are copied as they were declared, before anything was inlined into them.
+        @Override
+        public Expr visitInlineExpr(Expr.Inline expr) {
+            return copy(expr.call);
+        }
+
+        @Override
+        public Expr visitInvariantExpr(Expr.Invariant expr) {
+            return new Expr.Invariant(copy(expr.expression), slot(expr.slot));
+        }
+
+        @Override
+        public Expr visitLiteralExpr(Expr.Literal expr) {
+            return expr;
+        }
+
+        @Override
+        public Expr visitLogicExpr(Expr.Logic expr) {
+            return new Expr.Logic(copy(expr.left), expr.operator, copy(expr.right));
+        }
+
+        @Override
+        public Expr visitSetExpr(Expr.Set expr) {
+            return new Expr.Set(copy(expr.object), expr.name, copy(expr.value));
+        }
+
+        @Override
+        public Expr visitSuperExpr(Expr.Super expr) {
+            throw new IllegalStateException("Inlined functions have no superclass.");
+        }
+
+        @Override
+        public Expr visitThisExpr(Expr.This expr) {
+            throw new IllegalStateException("Inlined functions have no receiver.");
+        }
+
+        @Override
+        public Expr visitUnaryExpr(Expr.Unary expr) {
+            return new Expr.Unary(expr.operator, copy(expr.right));
+        }
+
+        @Override
+        public Expr visitVariableExpr(Expr.Variable expr) {
+            Expr.Variable variable = new Expr.Variable(expr.name);
+            variable.slot = slot(expr.slot);
+            return variable;
+        }
+
+        @Override
+        public Stmt visitBlockStmt(Stmt.Block stmt) {
+            Stmt.Block block = new Stmt.Block(copyAll(stmt.statements));
+            block.scoped = false;
+            return block;
+        }
+
+        @Override
+        public Stmt visitClassStmt(Stmt.Class stmt) {
+            throw new IllegalStateException("Inlined functions declare no classes.");
+        }
+
+        @Override
+        public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+            return new Stmt.Expression(copy(stmt.expression));
+        }
+
+        @Override
+        public Stmt visitFunctionStmt(Stmt.Function stmt) {
+            throw new IllegalStateException("Inlined functions declare no functions.");
+        }
+
+        @Override
+        public Stmt visitIfStmt(Stmt.If stmt) {
+            return new Stmt.If(copy(stmt.condition), copy(stmt.thenBranch), copy(stmt.elseBranch));
+        }
+
+        @Override
+        public Stmt visitPrintStmt(Stmt.Print stmt) {
+            return new Stmt.Print(copy(stmt.expression));
+        }
+
+        @Override
+        public Stmt visitReturnStmt(Stmt.Return stmt) {
+            return new Stmt.Return(stmt.keyword, copy(stmt.value));
+        }
+
+        @Override
+        public Stmt visitVarStmt(Stmt.Var stmt) {
+            Stmt.Var var = new Stmt.Var(stmt.name, copy(stmt.initializer));
+            var.slot = slot(stmt.slot);
+            return var;
+        }
+
+        @Override
+        public Stmt visitWhileStmt(Stmt.While stmt) {
+            Stmt.While loop = new Stmt.While(copy(stmt.condition), copy(stmt.body));
+            if (stmt.invariants != null) {
+                loop.invariants = new int[stmt.invariants.length];
+                for (int i = 0; i < loop.invariants.length; i ++) {
+                    loop.invariants[i] = slot(stmt.invariants[i]);
+                }
+            }
+            return loop;
+        }
+    }
+}
@@ -1,17 +1,49 @@
 package com.craftinginterpreters.lox;
 
 
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
+public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Interpreter.Completion> {
+    // How a statement finished. A return statement leaves its value in returnValue and completes with RETURN,
+    // which every statement that runs others hands straight back up until LoxFunction.call() picks it up.
+    enum Completion {
+        NORMAL,
+        RETURN
+    }
+
+    private final OutputSink out;
+    private final ErrorReporter errors;
     final Environment globals = new Environment();
+    // The one frame every outermost block in top-level code runs in, grown to fit the largest of them.
+    private final Environment frame = new Environment(0);
     private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
+    Object returnValue;
+    // When set, binary and unary expressions run through the self-specializing BinaryOp and UnaryOp nodes.
+    boolean specializing = false;
+    // When set, hot functions are compiled by the Jit. function is the one whose body is running, so loops can
+    // count towards it.
+    boolean tiered = false;
+    Stmt.Function function;
+    // When set, calls and property accesses go through the relinkable call sites in Linker. Off unless asked
+    // for: invoked from the tree-walker, a site is never a constant HotSpot can inline through, and building the
+    // sites and their guard chains costs far more than it saves on short scripts.
+    boolean linking = false;
+    // When set, every loop iteration and call is charged to it.
+    Budget budget;
+    // What a slot caching a loop-invariant expression holds until the expression has been evaluated.
+    private static final Object NOT_CACHED = new Object();
+    // When positive, calls to global functions of up to this many syntax tree nodes are inlined; see Inliner.
+    int inlineBudget = 0;
 
     Interpreter() {
+        this(System.out::println, Lox.reporter);
+    }
+
+    Interpreter(OutputSink out, ErrorReporter errors) {
+        this.out = out;
+        this.errors = errors;
         globals.define("clock", new LoxCallable() {
             @Override
             public int arity() {
@@ -19,7 +51,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             }
 
             @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
+            public Object call(Interpreter interpreter, Object[] arguments) {
                 return (double) System.currentTimeMillis() / 1000.0;
             }
             @Override
@@ -31,9 +63,14 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance, expr.name, value);
+        if (expr.upvalue >= 0) {
+            ((Cell) environment.upvalues[expr.upvalue]).value = value;
+        }
+        else if (expr.captured) {
+            ((Cell) environment.getAt(expr.slot)).value = value;
+        }
+        else if (expr.slot >= 0) {
+            environment.assignAt(expr.slot, value);
         }
         else {
             globals.assign(expr.name, value);
@@ -43,23 +80,30 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
+        if (specializing) {
+            return expr.op.execute(this, expr);
+        }
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
-        switch (expr.operator.type) {
+        return binary(expr.operator, left, right);
+    }
+
+    static Object binary(Token operator, Object left, Object right) {
+        switch (operator.type) {
             case GREATER:
-                checkNumberOperand(expr.operator, left, right);
+                checkNumberOperand(operator, left, right);
                 return (double)left > (double) right;
             case GREATER_EQUAL:
-                checkNumberOperand(expr.operator, left, right);
+                checkNumberOperand(operator, left, right);
                 return (double)left >= (double) right;
             case LESS:
-                checkNumberOperand(expr.operator, left, right);
+                checkNumberOperand(operator, left, right);
                 return (double)left < (double) right;
             case LESS_EQUAL:
-                checkNumberOperand(expr.operator, left, right);
+                checkNumberOperand(operator, left, right);
                 return (double)left <= (double) right;
             case MINUS:
-                checkNumberOperand(expr.operator, left, right);
+                checkNumberOperand(operator, left, right);
                 return (double)left - (double) right;
             case BANG_EQUAL:
                 return !isEqual(left, right);
@@ -75,15 +119,15 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 if (left instanceof String || right instanceof String) {
                     return left.toString() + right.toString();
                 }
-                throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings");
+                throw new RuntimeError(operator, "Operands must be two numbers or two strings");
             case SLASH:
-                checkNumberOperand(expr.operator, left, right);
+                checkNumberOperand(operator, left, right);
                 if ((double) right == 0) {
-                    throw new RuntimeError(expr.operator, "denominator can't be zero");
+                    throw new RuntimeError(operator, "denominator can't be zero");
                 }
                 return (double)left / (double) right;
             case STAR:
-                checkNumberOperand(expr.operator, left, right);
+                checkNumberOperand(operator, left, right);
                 return (double)left * (double) right;
         }
         //Unreachable
@@ -92,26 +136,106 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitCallExpr(Expr.Call expr) {
+        if (budget != null) budget.charge();
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr.callee;
+            Object object = evaluate(get.object);
+            if (object instanceof LoxInstance) {
+                LoxInstance instance = (LoxInstance) object;
+                LoxFunction method = get.cache.method(instance, get.name);
+                if (method != null) {
+                    return callMethod(expr, method, instance);
+                }
+                return call(expr, get.cache.get(instance, get.name));
+            }
+            throw new RuntimeError(get.name, "Only instances have properties");
+        }
+        if (expr.callee instanceof Expr.Super) {
+            Expr.Super callee = (Expr.Super) expr.callee;
+            return callMethod(expr, superMethod(callee), (LoxInstance) visitThisExpr(callee.receiver));
+        }
         Object callee = evaluate(expr.callee);
-        List<Object> arguments = new ArrayList<>();
-        for (Expr argument : expr.arguments) {
-            arguments.add(evaluate(argument));
+        if (linking) {
+            if (expr.site == null) expr.site = new Linker.CallSite();
+            return expr.site.call(this, expr, callee);
         }
+        return call(expr, callee);
+    }
+
+    // obj.method(...) and super.method(...) call the method with the receiver directly rather than
+    // allocating a bound method just to call it once.
+    private Object callMethod(Expr.Call expr, LoxFunction method, LoxInstance receiver) {
+        if (method.arity() == expr.arguments.size()) {
+            return method.execute(this, argumentFrame(expr, method, receiver));
+        }
+        return call(expr, method.bind(receiver));
+    }
+
+    Object call(Expr.Call expr, Object callee) {
+        // Calls to Lox functions and initializers with the right number of arguments evaluate them straight into
+        // the callee's environment. Everything else, including every call that is about to fail, goes through
+        // an argument array.
+        if (callee instanceof LoxFunction) {
+            LoxFunction function = (LoxFunction) callee;
+            if (function.arity() == expr.arguments.size()) {
+                return function.execute(this, argumentFrame(expr, function, function.receiver));
+            }
+        }
+        else if (callee instanceof LoxClass) {
+            LoxFunction initializer = ((LoxClass) callee).initializer;
+            if (initializer != null && initializer.arity() == expr.arguments.size()) {
+                LoxInstance instance = new LoxInstance((LoxClass) callee);
+                initializer.execute(this, argumentFrame(expr, initializer, instance));
+                return instance;
+            }
+        }
+
+        Object[] arguments = new Object[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i ++) {
+            arguments[i] = evaluate(expr.arguments.get(i));
+        }
+        return callValue(expr.paren, callee, arguments);
+    }
+
+    Object callValue(Token paren, Object callee, Object[] arguments) {
         if (!(callee instanceof LoxCallable)) {
-            throw new RuntimeError(expr.paren, "Can only call functions and classes");
+            throw new RuntimeError(paren, "Can only call functions and classes");
         }
         LoxCallable function = (LoxCallable) callee;
-        if (arguments.size() != function.arity()) {
-            throw new RuntimeError(expr.paren, "Expected " + function.arity() + " arguments but got " + arguments.size() + ".");
+        if (arguments.length != function.arity()) {
+            throw new RuntimeError(paren, "Expected " + function.arity() + " arguments but got " + arguments.length + ".");
         }
         return function.call(this, arguments);
     }
 
+    Environment argumentFrame(Expr.Call expr, LoxFunction function, LoxInstance receiver) {
+        Environment frame = function.frame(receiver);
+        List<Expr> arguments = expr.arguments;
+        for (int i = 0; i < arguments.size(); i ++) {
+            Expr argument = arguments.get(i);
+            if (specializing && producesNumber(argument)) {
+                try {
+                    frame.defineNumber(evaluateNumber(argument));
+                }
+                catch (UnexpectedValue unexpected) {
+                    frame.define(function.parameter(i), unexpected.value);
+                }
+                continue;
+            }
+            frame.define(function.parameter(i), evaluate(argument));
+        }
+        return frame;
+    }
+
     @Override
     public Object visitGetExpr(Expr.Get expr) {
         Object object = evaluate(expr.object);
         if (object instanceof LoxInstance) {
-            return ((LoxInstance) object).get(expr.name);
+            if (linking) {
+                if (expr.site == null) expr.site = new Linker.GetSite(expr.name);
+                return expr.site.get((LoxInstance) object);
+            }
+            return expr.cache.get((LoxInstance) object, expr.name);
         }
         throw new RuntimeError(expr.name, "Only instances have properties");
     }
@@ -121,6 +245,53 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return evaluate(expr.expression);
     }
 
+    // Runs the copied body in this frame, as long as the global being called still holds the function the body
+    // was copied from. Otherwise it is an ordinary call.
+    @Override
+    public Object visitInlineExpr(Expr.Inline expr) {
+        if (budget != null) budget.charge();
+        Expr.Call call = expr.call;
+        Object callee = evaluate(call.callee);
+        if (!(callee instanceof LoxFunction) || !((LoxFunction) callee).isPlainFunction(expr.declaration)) {
+            return call(call, callee);
+        }
+        List<Expr> arguments = call.arguments;
+        for (int i = 0; i < arguments.size(); i ++) {
+            Expr argument = arguments.get(i);
+            if (specializing && producesNumber(argument)) {
+                try {
+                    environment.assignNumberAt(expr.base + i, evaluateNumber(argument));
+                }
+                catch (UnexpectedValue unexpected) {
+                    environment.assignAt(expr.base + i, unexpected.value);
+                }
+                continue;
+            }
+            environment.assignAt(expr.base + i, evaluate(argument));
+        }
+        List<Stmt> body = expr.body;
+        for (int i = 0; i < body.size(); i ++) {
+            if (execute(body.get(i)) == Completion.RETURN) {
+                Object value = returnValue;
+                returnValue = null;
+                return value;
+            }
+        }
+        return null;
+    }
+
+    // Computed where it first runs, so an expression that fails still fails there, and reused until the loop
+    // that caches it is entered again.
+    @Override
+    public Object visitInvariantExpr(Expr.Invariant expr) {
+        Object value = environment.getAt(expr.slot);
+        if (value == NOT_CACHED) {
+            value = evaluate(expr.expression);
+            environment.assignAt(expr.slot, value);
+        }
+        return value;
+    }
+
     @Override
     public Object visitLiteralExpr(Expr.Literal expr) {
         return expr.value;
@@ -145,33 +316,49 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             throw new RuntimeError(expr.name, "Only instance have fields.");
         }
         Object value = evaluate(expr.value);
-        ((LoxInstance) object).set(expr.name, value);
+        if (linking) {
+            if (expr.site == null) expr.site = new Linker.SetSite(expr.name);
+            expr.site.set((LoxInstance) object, value);
+            return value;
+        }
+        expr.cache.set((LoxInstance) object, expr.name, value);
         return value;
     }
 
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
-        int distance = locals.get(expr);
-        LoxClass superclass = (LoxClass) environment.getAt(distance, "super");
-        LoxInstance object = (LoxInstance) environment.getAt(distance - 1, "this");
-        LoxFunction method = superclass.findMethod(expr.method.lexeme);
+        LoxInstance object = (LoxInstance) visitThisExpr(expr.receiver);
+        return superMethod(expr).bind(object);
+    }
+
+    private LoxFunction superMethod(Expr.Super expr) {
+        LoxClass superclass = (LoxClass) environment.upvalues[expr.upvalue];
+        LoxFunction method = superclass.findMethod(expr.method.lexeme());
         if (method == null) {
-            throw new RuntimeError(expr.method, "Undefined property '" + expr.method.lexeme + "'.");
+            throw new RuntimeError(expr.method, "Undefined property '" + expr.method.lexeme() + "'.");
         }
-        return method.bind(object);
+        return method;
     }
 
     @Override
     public Object visitThisExpr(Expr.This expr) {
-        return lookUpVariable(expr.keyword, expr);
+        if (expr.upvalue >= 0) return environment.upvalues[expr.upvalue];
+        return environment.getAt(expr.slot);
     }
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
+        if (specializing) {
+            return expr.op.execute(this, expr);
+        }
         Object right = evaluate(expr.right);
-        switch (expr.operator.type) {
+        return unary(expr.operator, right);
+    }
+
+    static Object unary(Token operator, Object right) {
+        switch (operator.type) {
             case MINUS:
-                checkNumberOperand(expr.operator, right);
+                checkNumberOperand(operator, right);
                 return - (double) right;
             case BANG:
                 return !isTruthy(right);
@@ -182,42 +369,84 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookUpVariable(expr.name, expr);
-    }
-
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return  environment.getAt(distance, name.lexeme);
+        if (expr.upvalue >= 0) {
+            return ((Cell) environment.upvalues[expr.upvalue]).value;
+        }
+        else if (expr.captured) {
+            return ((Cell) environment.getAt(expr.slot)).value;
+        }
+        else if (expr.slot >= 0) {
+            return  environment.getAt(expr.slot);
         }
         else {
-            return globals.get(name);
+            return globals.get(expr.name);
         }
     }
 
-    private void checkNumberOperand(Token operator, Object operand) {
+    private static void checkNumberOperand(Token operator, Object operand) {
         if (operand instanceof Double)
             return;
         throw new RuntimeError(operator, "Operand must be number");
     }
 
-    private void checkNumberOperand(Token operator, Object left, Object right) {
+    private static void checkNumberOperand(Token operator, Object left, Object right) {
         if (left instanceof Double && right instanceof Double)
             return;
         throw new RuntimeError(operator, "Operands must be numbers.");
     }
 
-    private Object evaluate(Expr expr) {
+    Object evaluate(Expr expr) {
         return expr.accept(this);
     }
 
-    private boolean isTruthy(Object object) {
+    // The unboxed counterpart of evaluate(), used by the specialized number operations. Throws UnexpectedValue
+    // if the expression turns out not to produce a number.
+    double evaluateNumber(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            return binary.op.executeNumber(this, binary);
+        }
+        if (expr instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable) expr;
+            if (variable.slot >= 0 && !variable.captured) {
+                return environment.getNumberAt(variable.slot);
+            }
+        }
+        else if (expr instanceof Expr.Literal) {
+            return expectNumber(((Expr.Literal) expr).value);
+        }
+        else if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            return unary.op.executeNumber(this, unary);
+        }
+        else if (expr instanceof Expr.Grouping) {
+            return evaluateNumber(((Expr.Grouping) expr).expression);
+        }
+        return expectNumber(evaluate(expr));
+    }
+
+    static double expectNumber(Object value) {
+        if (value instanceof Double) {
+            return (double) value;
+        }
+        throw new UnexpectedValue(value);
+    }
+
+    // Whether a value about to be stored in a local is expected to be a number, and so worth evaluating unboxed.
+    private static boolean producesNumber(Expr expr) {
+        if (expr instanceof Expr.Binary) return ((Expr.Binary) expr).op.producesNumber();
+        if (expr instanceof Expr.Unary) return ((Expr.Unary) expr).op.producesNumber();
+        if (expr instanceof Expr.Literal) return ((Expr.Literal) expr).value instanceof Double;
+        return false;
+    }
+
+    static boolean isTruthy(Object object) {
         if(object == null) return false;
         if (object instanceof Boolean) return (boolean) object;
         return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
         if (a == null && b == null)
             return true;
         if (a == null)
@@ -226,21 +455,23 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     void interpret(List<Stmt> statements) {
+        // Inlined bodies are not something the Jit compiles, so tiered mode leaves calls alone.
+        if (inlineBudget > 0 && !tiered) statements = Inliner.inline(statements, inlineBudget);
         try {
             for (Stmt statement : statements) {
                 execute(statement);
             }
         }
         catch (RuntimeError error) {
-            Lox.runtimeError(error);
+            errors.runtimeError(error);
         }
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    private Completion execute(Stmt stmt) {
+        return stmt.accept(this);
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) return "nil";
         if (object instanceof Double) {
             String text = object.toString();
@@ -253,13 +484,21 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
-        return null;
+    public Completion visitBlockStmt(Stmt.Block stmt) {
+        if (!stmt.scoped) {
+            // Indexed rather than for-each so running a block does not allocate an Iterator.
+            List<Stmt> statements = stmt.statements;
+            for (int i = 0; i < statements.size(); i ++) {
+                if (execute(statements.get(i)) == Completion.RETURN) return Completion.RETURN;
+            }
+            return Completion.NORMAL;
+        }
+        frame.reserve(stmt.frameSize);
+        return executeBlock(stmt.statements, frame);
     }
 
     @Override
-    public Void visitClassStmt(Stmt.Class stmt) {
+    public Completion visitClassStmt(Stmt.Class stmt) {
         Object superclass = null;
         if (stmt.superclass != null) {
             superclass = evaluate(stmt.superclass);
@@ -267,31 +506,43 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 throw new RuntimeError(stmt.superclass.name, "Superclass must be a class.");
             }
         }
-        environment.define(stmt.name.lexeme, null);
+        // Methods that refer to a captured local class capture its cell, so that has to be in place first.
+        Cell cell = null;
+        if (stmt.captured) {
+            cell = new Cell(null);
+            environment.assignAt(stmt.slot, cell);
+        }
+        Environment enclosing = environment;
         if (stmt.superclass != null) {
-            environment = new Environment(environment);
-            environment.define("super", superclass);
+            // At the top level there is no frame for "super" to go in, so it gets one of its own.
+            if (environment == globals) environment = new Environment(1);
+            environment.assignAt(stmt.superSlot, superclass);
         }
         Map<String, LoxFunction> methods = new HashMap<>();
         for(Stmt.Function method : stmt.methods) {
-            LoxFunction function = new LoxFunction(method, environment, method.name.lexeme.equals("init"));
-            methods.put(method.name.lexeme, function);
+            LoxFunction function = new LoxFunction(method, environment.capture(method.upvalues), true,
+                    method.name.lexeme().equals("init"));
+            methods.put(method.name.lexeme(), function);
         }
-        LoxClass klass = new LoxClass(stmt.name.lexeme, (LoxClass) superclass, methods);
-        if (superclass != null) {
-            environment = environment.enclosing;
+        LoxClass klass = new LoxClass(stmt.name.lexeme(), (LoxClass) superclass, methods);
+        environment = enclosing;
+        if (cell != null) {
+            cell.value = klass;
+            return Completion.NORMAL;
         }
-        environment.assign(stmt.name, klass);
-        return null;
+        // Defined only once the class exists, as nothing can observe the name before that.
+        declare(stmt.name, stmt.slot, klass);
+        return Completion.NORMAL;
     }
 
-    void executeBlock(List<Stmt> statements, Environment environment) {
+    Completion executeBlock(List<Stmt> statements, Environment environment) {
         Environment previous = this.environment;
         try {
             this.environment = environment;
-            for (Stmt statement : statements) {
-                execute(statement);
+            for (int i = 0; i < statements.size(); i ++) {
+                if (execute(statements.get(i)) == Completion.RETURN) return Completion.RETURN;
             }
+            return Completion.NORMAL;
         }
         finally {
             this.environment = previous;
@@ -299,62 +550,109 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
+    public Completion visitExpressionStmt(Stmt.Expression stmt) {
+        if (specializing && stmt.expression instanceof Expr.Assign) {
+            // The value of the assignment is discarded, so a number can go into the local without being boxed.
+            Expr.Assign assign = (Expr.Assign) stmt.expression;
+            if (assign.slot >= 0 && !assign.captured && producesNumber(assign.value)) {
+                try {
+                    environment.assignNumberAt(assign.slot, evaluateNumber(assign.value));
+                }
+                catch (UnexpectedValue unexpected) {
+                    environment.assignAt(assign.slot, unexpected.value);
+                }
+                return Completion.NORMAL;
+            }
+        }
         evaluate(stmt.expression);
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
-        LoxFunction function = new LoxFunction(stmt, environment, false);
-        environment.define(stmt.name.lexeme, function);
-        return null;
+    public Completion visitFunctionStmt(Stmt.Function stmt) {
+        if (stmt.captured) {
+            // A captured local function that calls itself captures its own cell.
+            Cell cell = new Cell(null);
+            environment.assignAt(stmt.slot, cell);
+            cell.value = new LoxFunction(stmt, environment.capture(stmt.upvalues), false, false);
+            return Completion.NORMAL;
+        }
+        LoxFunction function = new LoxFunction(stmt, environment.capture(stmt.upvalues), false, false);
+        declare(stmt.name, stmt.slot, function);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
+    public Completion visitIfStmt(Stmt.If stmt) {
         if (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.thenBranch);
+            return execute(stmt.thenBranch);
         }
         else if(stmt.elseBranch != null) {
-            execute(stmt.elseBranch);
+            return execute(stmt.elseBranch);
         }
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
-        Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
-        return null;
+    public Completion visitPrintStmt(Stmt.Print stmt) {
+        print(evaluate(stmt.expression));
+        return Completion.NORMAL;
+    }
+
+    void print(Object value) {
+        out.println(stringify(value));
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
+    public Completion visitReturnStmt(Stmt.Return stmt) {
         Object value = null;
         if (stmt.value != null) value = evaluate(stmt.value);
-        throw new Return(value);
+        returnValue = value;
+        return Completion.RETURN;
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
+    public Completion visitVarStmt(Stmt.Var stmt) {
+        if (specializing && stmt.slot >= 0 && !stmt.captured && stmt.initializer != null
+                && producesNumber(stmt.initializer)) {
+            try {
+                environment.assignNumberAt(stmt.slot, evaluateNumber(stmt.initializer));
+            }
+            catch (UnexpectedValue unexpected) {
+                environment.assignAt(stmt.slot, unexpected.value);
+            }
+            return Completion.NORMAL;
+        }
         Object value = null;
         if(stmt.initializer != null) {
             value = evaluate(stmt.initializer);
         }
-        environment.define(stmt.name.lexeme, value);
-        return null;
+        declare(stmt.name, stmt.slot, stmt.captured ? new Cell(value) : value);
+        return Completion.NORMAL;
     }
 
-    @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
-        while (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.body);
+    // Locals go in the slot the Resolver gave them; a slot of -1 means a global.
+    private void declare(Token name, int slot, Object value) {
+        if (slot >= 0) {
+            environment.assignAt(slot, value);
+        }
+        else {
+            globals.define(name.lexeme(), value);
         }
-        return null;
     }
 
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    @Override
+    public Completion visitWhileStmt(Stmt.While stmt) {
+        if (stmt.invariants != null) {
+            for (int slot : stmt.invariants) {
+                environment.assignAt(slot, NOT_CACHED);
+            }
+        }
+        while (isTruthy(evaluate(stmt.condition))) {
+            if (execute(stmt.body) == Completion.RETURN) return Completion.RETURN;
+            if (function != null) function.hotness ++;
+            if (budget != null) budget.charge();
+        }
+        return Completion.NORMAL;
     }
 }
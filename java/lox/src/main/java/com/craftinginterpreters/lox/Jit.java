@@ -0,0 +1,837 @@
+package com.craftinginterpreters.lox;
+
+import com.craftinginterpreters.lox.ClassAssembler.Code;
+import com.craftinginterpreters.lox.ClassAssembler.Label;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.craftinginterpreters.lox.ClassAssembler.Opcodes.*;
+
+// The second tier of tiered mode. Plain functions count their calls and loop iterations, and once one is hot
+// it is compiled to a hidden JVM class, which HotSpot then optimizes like any other Java code.
+//
+// Only functions that capture no variables and use a numeric subset of Lox are compiled: locals, globals,
+// arithmetic, comparisons, logic, calls, print, if, while and return. Locals that only ever hold numbers live in
+// JVM double locals, and recursive calls go straight to the compiled method. The first compilation speculates
+// that every argument is a number. If a call breaks that, the compiled code deoptimizes before running
+// anything: the call falls back to the Interpreter, and the function is later recompiled without the
+// speculation. Compiled code is only entered at calls; a loop that is already running stays interpreted.
+final class Jit implements Expr.Visitor<Jit.Type>, Stmt.Visitor<Void> {
+    static final int THRESHOLD = 1000;
+
+    private static final String INTERPRETER = "com/craftinginterpreters/lox/Interpreter";
+    private static final String ENVIRONMENT = "com/craftinginterpreters/lox/Environment";
+    private static final String RUNTIME = "com/craftinginterpreters/lox/JitRuntime";
+    private static final String TOKEN = "com/craftinginterpreters/lox/Token";
+    private static final String FUNCTION = "com/craftinginterpreters/lox/Stmt$Function";
+    private static final String OBJECT = "java/lang/Object";
+
+    enum Type {
+        // Not known yet, while the types of locals are being inferred.
+        NONE,
+        NUMBER,
+        BOOLEAN,
+        OBJECT;
+
+        Type join(Type other) {
+            if (this == NONE) return other;
+            if (other == NONE || other == this) return this;
+            return OBJECT;
+        }
+    }
+
+    private static final class Local {
+        final Type initial;
+        Type type;
+        int index;
+
+        Local(Type type) {
+            this.initial = type;
+            this.type = type;
+        }
+    }
+
+    // Thrown while compiling a function that is outside the subset the JIT handles.
+    @SuppressWarnings("serial")
+    private static final class Unsupported extends RuntimeException {
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    // Counts a call to a plain function and returns its compiled code, compiling it once it is hot.
+    static CompiledFunction compiled(Stmt.Function declaration) {
+        if (declaration.compiled == null && !declaration.uncompilable && ++ declaration.hotness >= THRESHOLD) {
+            declaration.compiled = compile(declaration, !declaration.deoptimized);
+            if (declaration.compiled == null) {
+                declaration.uncompilable = true;
+            }
+        }
+        return declaration.compiled;
+    }
+
+    static void deoptimize(Stmt.Function declaration) {
+        declaration.compiled = null;
+        declaration.deoptimized = true;
+        declaration.hotness = 0;
+    }
+
+    private static CompiledFunction compile(Stmt.Function function, boolean speculate) {
+        try {
+            Jit jit = new Jit(function, speculate);
+            byte[] bytes = jit.assemble();
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            lookup.findStaticSetter(lookup.lookupClass(), "constants", Object[].class)
+                    .invoke(jit.constants.toArray());
+            return (CompiledFunction) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class))
+                    .invoke();
+        }
+        catch (Unsupported unsupported) {
+            return null;
+        }
+        catch (Throwable error) {
+            throw new IllegalStateException("Could not compile " + function.name.lexeme() + ".", error);
+        }
+    }
+
+    private final Stmt.Function function;
+    private final boolean speculate;
+    private final String className;
+    private final String bodyDescriptor;
+    private final ClassAssembler assembler;
+    private final Map<Object, Local> locals = new IdentityHashMap<>();
+    private final List<Local> parameters = new ArrayList<>();
+    private final List<Object> constants = new ArrayList<>();
+    private Code code;
+    private int nextLocal;
+
+    private Jit(Stmt.Function function, boolean speculate) {
+        this.function = function;
+        this.speculate = speculate;
+        this.className = "com/craftinginterpreters/lox/Compiled$" + function.name.lexeme();
+        this.assembler = new ClassAssembler(className);
+
+        StringBuilder descriptor = new StringBuilder("(L" + INTERPRETER + ";");
+        for (int i = 0; i < function.params.size(); i ++) {
+            descriptor.append(speculate ? "D" : "L" + OBJECT + ";");
+        }
+        this.bodyDescriptor = descriptor.append(")L" + OBJECT + ";").toString();
+
+        new Binder().bind();
+        inferTypes();
+    }
+
+    private byte[] assemble() {
+        assembler.addInterface("com/craftinginterpreters/lox/CompiledFunction");
+        assembler.addStaticField("constants", "[L" + OBJECT + ";");
+
+        code = assembler.addMethod(ClassAssembler.ACC_PUBLIC, "<init>", "()V");
+        code.local(ALOAD, 0, 1);
+        code.op2(INVOKESPECIAL, assembler.methodRef(OBJECT, "<init>", "()V"), -1);
+        code.op(RETURN, 0);
+
+        emitInvoke();
+
+        code = assembler.addMethod(ClassAssembler.ACC_STATIC, "body", bodyDescriptor);
+        nextLocal = 1;
+        for (Local parameter : parameters) {
+            parameter.index = nextLocal;
+            nextLocal += parameter.initial == Type.NUMBER ? 2 : 1;
+        }
+        code.reserveLocals(nextLocal);
+        // A parameter passed as a number that is later assigned something else is boxed into a local of its own.
+        for (Local parameter : parameters) {
+            if (parameter.type == parameter.initial) continue;
+            code.local(DLOAD, parameter.index, 2);
+            invokeStatic("java/lang/Double", "valueOf", "(D)Ljava/lang/Double;");
+            parameter.index = nextLocal ++;
+            code.local(ASTORE, parameter.index, -1);
+        }
+        for (Stmt statement : function.body) {
+            statement.accept(this);
+        }
+        code.op(ACONST_NULL, 1);
+        code.op(ARETURN, -1);
+
+        if (code.size() > Short.MAX_VALUE || nextLocal > 255) {
+            throw new Unsupported();
+        }
+        return assembler.toByteArray();
+    }
+
+    // The entry point from the Interpreter: checks the speculation, then unpacks the frame into arguments.
+    private void emitInvoke() {
+        code = assembler.addMethod(ClassAssembler.ACC_PUBLIC, "invoke",
+                "(L" + INTERPRETER + ";L" + ENVIRONMENT + ";)L" + OBJECT + ";");
+        code.reserveLocals(3);
+        Label deoptimize = code.newLabel();
+        if (speculate) {
+            for (int i = 0; i < parameters.size(); i ++) {
+                code.local(ALOAD, 2, 1);
+                pushInt(i);
+                invokeStatic(RUNTIME, "isNumber", "(L" + ENVIRONMENT + ";I)Z");
+                code.jump(IFEQ, deoptimize, -1);
+            }
+        }
+        code.local(ALOAD, 1, 1);
+        for (int i = 0; i < parameters.size(); i ++) {
+            code.local(ALOAD, 2, 1);
+            pushInt(i);
+            if (speculate) {
+                invokeStatic(RUNTIME, "number", "(L" + ENVIRONMENT + ";I)D");
+            }
+            else {
+                invokeStatic(RUNTIME, "argument", "(L" + ENVIRONMENT + ";I)L" + OBJECT + ";");
+            }
+        }
+        invokeStatic(className, "body", bodyDescriptor);
+        code.op(ARETURN, -1);
+        code.mark(deoptimize);
+        code.op2(GETSTATIC, assembler.fieldRef(RUNTIME, "DEOPTIMIZE", "L" + OBJECT + ";"), 1);
+        code.op(ARETURN, -1);
+    }
+
+    // Locals whose every assignment is a number are NUMBER, and likewise for BOOLEAN. Since assignments can
+    // depend on each other, this is iterated until nothing changes.
+    private void inferTypes() {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Map.Entry<Object, Local> entry : locals.entrySet()) {
+                Expr value = null;
+                if (entry.getKey() instanceof Stmt.Var) value = ((Stmt.Var) entry.getKey()).initializer;
+                if (entry.getKey() instanceof Expr.Assign) value = ((Expr.Assign) entry.getKey()).value;
+                if (value == null) continue;
+                Local local = entry.getValue();
+                Type type = local.type.join(typeOf(value));
+                if (type != local.type) {
+                    local.type = type;
+                    changed = true;
+                }
+            }
+        }
+        for (Local local : locals.values()) {
+            if (local.type == Type.NONE) local.type = Type.OBJECT;
+        }
+    }
+
+    private Type typeOf(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            Object value = ((Expr.Literal) expr).value;
+            if (value instanceof Double) return Type.NUMBER;
+            if (value instanceof Boolean) return Type.BOOLEAN;
+            return Type.OBJECT;
+        }
+        if (expr instanceof Expr.Variable || expr instanceof Expr.Assign) {
+            Local local = locals.get(expr);
+            if (local == null) return Type.OBJECT;
+            // Not known yet is taken optimistically; the iteration widens it if it has to.
+            return local.type == Type.NONE ? Type.NUMBER : local.type;
+        }
+        if (expr instanceof Expr.Grouping) {
+            return typeOf(((Expr.Grouping) expr).expression);
+        }
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            if (unary.operator.type == TokenType.BANG) return Type.BOOLEAN;
+            return typeOf(unary.right) == Type.NUMBER ? Type.NUMBER : Type.OBJECT;
+        }
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            if (typeOf(binary.left) != Type.NUMBER || typeOf(binary.right) != Type.NUMBER) return Type.OBJECT;
+            switch (binary.operator.type) {
+                case PLUS: case MINUS: case STAR: case SLASH:
+                    return Type.NUMBER;
+                default:
+                    return Type.BOOLEAN;
+            }
+        }
+        if (expr instanceof Expr.Logic) {
+            Expr.Logic logic = (Expr.Logic) expr;
+            return typeOf(logic.left).join(typeOf(logic.right));
+        }
+        return Type.OBJECT;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        for (Stmt statement : stmt.statements) {
+            statement.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        pop(emit(stmt.expression));
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        Label elseBranch = code.newLabel();
+        Label end = code.newLabel();
+        condition(stmt.condition);
+        code.jump(IFEQ, elseBranch, -1);
+        stmt.thenBranch.accept(this);
+        code.jump(GOTO, end, 0);
+        code.mark(elseBranch);
+        if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+        code.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        code.local(ALOAD, 0, 1);
+        emit(stmt.expression, Type.OBJECT);
+        invokeStatic(RUNTIME, "print", "(L" + INTERPRETER + ";L" + OBJECT + ";)V");
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) {
+            emit(stmt.value, Type.OBJECT);
+        }
+        else {
+            code.op(ACONST_NULL, 1);
+        }
+        code.op(ARETURN, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        Local local = locals.get(stmt);
+        local.index = nextLocal;
+        nextLocal += local.type == Type.NUMBER ? 2 : 1;
+        if (stmt.initializer != null) {
+            emit(stmt.initializer, local.type);
+        }
+        else {
+            code.op(ACONST_NULL, 1);
+        }
+        store(local);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        Label start = code.newLabel();
+        Label end = code.newLabel();
+        code.mark(start);
+        condition(stmt.condition);
+        code.jump(IFEQ, end, -1);
+        stmt.body.accept(this);
+        code.jump(GOTO, start, 0);
+        code.mark(end);
+        return null;
+    }
+
+    @Override
+    public Type visitAssignExpr(Expr.Assign expr) {
+        Local local = locals.get(expr);
+        if (local == null) {
+            code.local(ALOAD, 0, 1);
+            constant(expr.name, TOKEN);
+            emit(expr.value, Type.OBJECT);
+            invokeStatic(RUNTIME, "assignGlobal", "(L" + INTERPRETER + ";L" + TOKEN + ";L" + OBJECT + ";)L" + OBJECT + ";");
+            return Type.OBJECT;
+        }
+        emit(expr.value, local.type);
+        code.op(local.type == Type.NUMBER ? DUP2 : DUP, local.type == Type.NUMBER ? 2 : 1);
+        store(local);
+        return local.type;
+    }
+
+    @Override
+    public Type visitBinaryExpr(Expr.Binary expr) {
+        if (typeOf(expr.left) != Type.NUMBER || typeOf(expr.right) != Type.NUMBER) {
+            constant(expr.operator, TOKEN);
+            emit(expr.left, Type.OBJECT);
+            emit(expr.right, Type.OBJECT);
+            invokeStatic(RUNTIME, "binary", "(L" + TOKEN + ";L" + OBJECT + ";L" + OBJECT + ";)L" + OBJECT + ";");
+            return Type.OBJECT;
+        }
+        emit(expr.left);
+        emit(expr.right);
+        switch (expr.operator.type) {
+            case PLUS: code.op(DADD, -2); return Type.NUMBER;
+            case MINUS: code.op(DSUB, -2); return Type.NUMBER;
+            case STAR: code.op(DMUL, -2); return Type.NUMBER;
+            case SLASH:
+                constant(expr.operator, TOKEN);
+                invokeStatic(RUNTIME, "divide", "(DDL" + TOKEN + ";)D");
+                return Type.NUMBER;
+            case GREATER: compare("greater"); return Type.BOOLEAN;
+            case GREATER_EQUAL: compare("greaterEqual"); return Type.BOOLEAN;
+            case LESS: compare("less"); return Type.BOOLEAN;
+            case LESS_EQUAL: compare("lessEqual"); return Type.BOOLEAN;
+            case EQUAL_EQUAL: compare("equal"); return Type.BOOLEAN;
+            case BANG_EQUAL:
+                compare("equal");
+                not();
+                return Type.BOOLEAN;
+        }
+        throw new Unsupported();
+    }
+
+    @Override
+    public Type visitCallExpr(Expr.Call expr) {
+        if (isSelfCall(expr)) {
+            // Calls to the function being compiled skip the Interpreter, as long as the global still holds it.
+            Type parameterType = speculate ? Type.NUMBER : Type.OBJECT;
+            int callee = nextLocal ++;
+            Label slow = code.newLabel();
+            Label end = code.newLabel();
+            emit(expr.callee);
+            code.local(ASTORE, callee, -1);
+            code.local(ALOAD, callee, 1);
+            constant(function, FUNCTION);
+            invokeStatic(RUNTIME, "isSelf", "(L" + OBJECT + ";L" + FUNCTION + ";)Z");
+            code.jump(IFEQ, slow, -1);
+            code.local(ALOAD, 0, 1);
+            for (Expr argument : expr.arguments) {
+                emit(argument, parameterType);
+            }
+            invokeStatic(className, "body", bodyDescriptor);
+            code.jump(GOTO, end, 0);
+            code.mark(slow);
+            code.local(ALOAD, 0, 1);
+            code.local(ALOAD, callee, 1);
+            callValue(expr);
+            code.mark(end);
+            return Type.OBJECT;
+        }
+        code.local(ALOAD, 0, 1);
+        emit(expr.callee, Type.OBJECT);
+        callValue(expr);
+        return Type.OBJECT;
+    }
+
+    private boolean isSelfCall(Expr.Call expr) {
+        if (!(expr.callee instanceof Expr.Variable) || locals.containsKey(expr.callee)) return false;
+        if (!((Expr.Variable) expr.callee).name.lexeme().equals(function.name.lexeme())) return false;
+        if (expr.arguments.size() != function.params.size()) return false;
+        if (!speculate) return true;
+        for (Expr argument : expr.arguments) {
+            if (typeOf(argument) != Type.NUMBER) return false;
+        }
+        return true;
+    }
+
+    // With the interpreter and callee on the stack, evaluates the arguments into an array and calls.
+    private void callValue(Expr.Call expr) {
+        pushInt(expr.arguments.size());
+        code.op2(ANEWARRAY, assembler.classRef(OBJECT), 0);
+        for (int i = 0; i < expr.arguments.size(); i ++) {
+            code.op(DUP, 1);
+            pushInt(i);
+            emit(expr.arguments.get(i), Type.OBJECT);
+            code.op(AASTORE, -3);
+        }
+        constant(expr.paren, TOKEN);
+        invokeStatic(RUNTIME, "call", "(L" + INTERPRETER + ";L" + OBJECT + ";[L" + OBJECT + ";L" + TOKEN + ";)L" + OBJECT + ";");
+    }
+
+    @Override
+    public Type visitGetExpr(Expr.Get expr) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Type visitGroupingExpr(Expr.Grouping expr) {
+        return emit(expr.expression);
+    }
+
+    @Override
+    public Type visitInlineExpr(Expr.Inline expr) {
+        throw new Unsupported();
+    }
+
+    // Compiled code has no use for the cache; it just computes the value.
+    @Override
+    public Type visitInvariantExpr(Expr.Invariant expr) {
+        return emit(expr.expression);
+    }
+
+    @Override
+    public Type visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        if (value instanceof Double) {
+            code.op2(LDC2_W, assembler.number((double) value), 2);
+            return Type.NUMBER;
+        }
+        if (value instanceof Boolean) {
+            code.op((boolean) value ? ICONST_1 : ICONST_0, 1);
+            return Type.BOOLEAN;
+        }
+        if (value instanceof String) {
+            code.op2(LDC_W, assembler.string((String) value), 1);
+            return Type.OBJECT;
+        }
+        code.op(ACONST_NULL, 1);
+        return Type.OBJECT;
+    }
+
+    @Override
+    public Type visitLogicExpr(Expr.Logic expr) {
+        Type type = typeOf(expr);
+        Type leftType = typeOf(expr.left);
+        boolean or = expr.operator.type == TokenType.OR;
+        if (leftType == Type.NUMBER) {
+            // Numbers are always truthy.
+            if (or) {
+                emit(expr.left, type);
+                return type;
+            }
+            pop(emit(expr.left));
+            emit(expr.right, type);
+            return type;
+        }
+        Label end = code.newLabel();
+        emit(expr.left, type);
+        code.op(DUP, 1);
+        if (type == Type.OBJECT) {
+            invokeStatic(RUNTIME, "isTruthy", "(L" + OBJECT + ";)Z");
+        }
+        code.jump(or ? IFNE : IFEQ, end, -1);
+        pop(type);
+        emit(expr.right, type);
+        code.mark(end);
+        return type;
+    }
+
+    @Override
+    public Type visitSetExpr(Expr.Set expr) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Type visitSuperExpr(Expr.Super expr) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Type visitThisExpr(Expr.This expr) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Type visitUnaryExpr(Expr.Unary expr) {
+        if (expr.operator.type == TokenType.BANG) {
+            condition(expr.right);
+            not();
+            return Type.BOOLEAN;
+        }
+        if (typeOf(expr.right) == Type.NUMBER) {
+            emit(expr.right);
+            code.op(DNEG, 0);
+            return Type.NUMBER;
+        }
+        constant(expr.operator, TOKEN);
+        emit(expr.right, Type.OBJECT);
+        invokeStatic(RUNTIME, "unary", "(L" + TOKEN + ";L" + OBJECT + ";)L" + OBJECT + ";");
+        return Type.OBJECT;
+    }
+
+    @Override
+    public Type visitVariableExpr(Expr.Variable expr) {
+        Local local = locals.get(expr);
+        if (local == null) {
+            code.local(ALOAD, 0, 1);
+            constant(expr.name, TOKEN);
+            invokeStatic(RUNTIME, "global", "(L" + INTERPRETER + ";L" + TOKEN + ";)L" + OBJECT + ";");
+            return Type.OBJECT;
+        }
+        switch (local.type) {
+            case NUMBER: code.local(DLOAD, local.index, 2); break;
+            case BOOLEAN: code.local(ILOAD, local.index, 1); break;
+            default: code.local(ALOAD, local.index, 1); break;
+        }
+        return local.type;
+    }
+
+    private Type emit(Expr expr) {
+        return expr.accept(this);
+    }
+
+    // Emits the expression and converts its value to the given type. Only boxing is ever needed: the inferred
+    // types guarantee a NUMBER or BOOLEAN is never asked for where something else was computed.
+    private void emit(Expr expr, Type type) {
+        Type actual = emit(expr);
+        if (actual == type) return;
+        if (type != Type.OBJECT) throw new IllegalStateException("Cannot convert " + actual + " to " + type + ".");
+        if (actual == Type.NUMBER) {
+            invokeStatic("java/lang/Double", "valueOf", "(D)Ljava/lang/Double;");
+        }
+        else if (actual == Type.BOOLEAN) {
+            invokeStatic("java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;");
+        }
+    }
+
+    // Leaves 1 on the stack if the expression is truthy, 0 if not.
+    private void condition(Expr expr) {
+        Type type = emit(expr);
+        if (type == Type.NUMBER) {
+            code.op(POP2, -2);
+            code.op(ICONST_1, 1);
+        }
+        else if (type == Type.OBJECT) {
+            invokeStatic(RUNTIME, "isTruthy", "(L" + OBJECT + ";)Z");
+        }
+    }
+
+    private void not() {
+        code.op(ICONST_1, 1);
+        code.op(IXOR, -1);
+    }
+
+    private void compare(String name) {
+        invokeStatic(RUNTIME, name, "(DD)Z");
+    }
+
+    private void pop(Type type) {
+        code.op(type == Type.NUMBER ? POP2 : POP, type == Type.NUMBER ? -2 : -1);
+    }
+
+    private void store(Local local) {
+        switch (local.type) {
+            case NUMBER: code.local(DSTORE, local.index, -2); break;
+            case BOOLEAN: code.local(ISTORE, local.index, -1); break;
+            default: code.local(ASTORE, local.index, -1); break;
+        }
+    }
+
+    private void pushInt(int value) {
+        if (value < 128) {
+            code.op1(BIPUSH, value, 1);
+        }
+        else {
+            code.op2(SIPUSH, value, 1);
+        }
+    }
+
+    // Pushes an object the code needs, such as a token for error messages, from the class's constants array.
+    private void constant(Object value, String type) {
+        int index = constants.indexOf(value);
+        if (index < 0) {
+            index = constants.size();
+            constants.add(value);
+        }
+        code.op2(GETSTATIC, assembler.fieldRef(className, "constants", "[L" + OBJECT + ";"), 1);
+        pushInt(index);
+        code.op(AALOAD, -1);
+        code.op2(CHECKCAST, assembler.classRef(type), 0);
+    }
+
+    private void invokeStatic(String owner, String name, String descriptor) {
+        code.op2(INVOKESTATIC, assembler.methodRef(owner, name, descriptor),
+                slots(descriptor.substring(descriptor.indexOf(')') + 1)) - argumentSlots(descriptor));
+    }
+
+    private static int argumentSlots(String descriptor) {
+        int slots = 0;
+        int i = 1;
+        while (descriptor.charAt(i) != ')') {
+            int start = i;
+            while (descriptor.charAt(i) == '[') i ++;
+            if (descriptor.charAt(i) == 'L') i = descriptor.indexOf(';', i);
+            slots += i == start && descriptor.charAt(i) == 'D' ? 2 : 1;
+            i ++;
+        }
+        return slots;
+    }
+
+    private static int slots(String type) {
+        if (type.equals("V")) return 0;
+        return type.equals("D") ? 2 : 1;
+    }
+
+    // Works out which JVM local each Lox local maps to, and rejects anything outside the subset the JIT handles.
+    // Blocks reuse the slots of the frame, so a slot maps to the local of the declaration that last took it,
+    // which is the one in scope wherever the slot is used.
+    private final class Binder implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private final Local[] slots = new Local[function.frameSize];
+
+        void bind() {
+            for (int i = 0; i < function.params.size(); i ++) {
+                Local parameter = new Local(speculate ? Type.NUMBER : Type.OBJECT);
+                parameters.add(parameter);
+                slots[i] = parameter;
+            }
+            for (Stmt statement : function.body) {
+                statement.accept(this);
+            }
+        }
+
+        // Null for globals. Upvalues and captured locals live in cells, which the JIT does not handle.
+        private Local resolve(int slot, int upvalue, boolean captured) {
+            if (upvalue >= 0 || captured) throw new Unsupported();
+            if (slot < 0) return null;
+            return slots[slot];
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            for (Stmt statement : stmt.statements) {
+                statement.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            throw new Unsupported();
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            stmt.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            throw new Unsupported();
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            stmt.condition.accept(this);
+            stmt.thenBranch.accept(this);
+            if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            stmt.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            if (stmt.value != null) stmt.value.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            if (stmt.initializer != null) stmt.initializer.accept(this);
+            Local local = new Local(stmt.initializer == null ? Type.OBJECT : Type.NONE);
+            slots[stmt.slot] = local;
+            locals.put(stmt, local);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            stmt.condition.accept(this);
+            stmt.body.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            expr.value.accept(this);
+            Local local = resolve(expr.slot, expr.upvalue, expr.captured);
+            if (local != null) locals.put(expr, local);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            expr.left.accept(this);
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            expr.callee.accept(this);
+            for (Expr argument : expr.arguments) {
+                argument.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            throw new Unsupported();
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            expr.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitInlineExpr(Expr.Inline expr) {
+            throw new Unsupported();
+        }
+
+        @Override
+        public Void visitInvariantExpr(Expr.Invariant expr) {
+            expr.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitLogicExpr(Expr.Logic expr) {
+            expr.left.accept(this);
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            throw new Unsupported();
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super expr) {
+            throw new Unsupported();
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            throw new Unsupported();
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            Local local = resolve(expr.slot, expr.upvalue, expr.captured);
+            if (local != null) locals.put(expr, local);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.craftinginterpreters.lox;
+
+// Static helpers called from JIT-compiled code for everything that is not a plain JVM instruction. Each one does
+// exactly what the Interpreter does for the same construct, so compiled code behaves the same, errors included.
+final class JitRuntime {
+    static final Object DEOPTIMIZE = new Object();
+
+    private JitRuntime() {
+    }
+
+    static boolean isNumber(Environment frame, int slot) {
+        return frame.holdsNumber(slot);
+    }
+
+    static double number(Environment frame, int slot) {
+        return frame.getNumberAt(slot);
+    }
+
+    static Object argument(Environment frame, int slot) {
+        return frame.getAt(slot);
+    }
+
+    static Object global(Interpreter interpreter, Token name) {
+        return interpreter.globals.get(name);
+    }
+
+    static Object assignGlobal(Interpreter interpreter, Token name, Object value) {
+        interpreter.globals.assign(name, value);
+        return value;
+    }
+
+    static Object binary(Token operator, Object left, Object right) {
+        return Interpreter.binary(operator, left, right);
+    }
+
+    static Object unary(Token operator, Object right) {
+        return Interpreter.unary(operator, right);
+    }
+
+    static double divide(double left, double right, Token operator) {
+        if (right == 0) {
+            throw new RuntimeError(operator, "denominator can't be zero");
+        }
+        return left / right;
+    }
+
+    static boolean greater(double left, double right) {
+        return left > right;
+    }
+
+    static boolean greaterEqual(double left, double right) {
+        return left >= right;
+    }
+
+    static boolean less(double left, double right) {
+        return left < right;
+    }
+
+    static boolean lessEqual(double left, double right) {
+        return left <= right;
+    }
+
+    // Double.equals() compares bit patterns, so this agrees with Interpreter.isEqual() on NaN and -0.
+    static boolean equal(double left, double right) {
+        return Double.doubleToLongBits(left) == Double.doubleToLongBits(right);
+    }
+
+    static boolean isTruthy(Object value) {
+        return Interpreter.isTruthy(value);
+    }
+
+    static Object call(Interpreter interpreter, Object callee, Object[] arguments, Token paren) {
+        return interpreter.callValue(paren, callee, arguments);
+    }
+
+    // Whether a call can go straight to the compiled code of the function being compiled. Only plain functions
+    // capturing nothing are compiled, so any function object made from the same declaration behaves the same.
+    static boolean isSelf(Object callee, Stmt.Function declaration) {
+        return callee instanceof LoxFunction && ((LoxFunction) callee).isPlainFunction(declaration);
+    }
+
+    static void print(Interpreter interpreter, Object value) {
+        interpreter.print(value);
+    }
+}
@@ -0,0 +1,258 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+
+import static java.lang.invoke.MethodType.methodType;
+
+// Relinkable call sites for calls and property access, used by the Interpreter when --link is given. A site
+// starts out pointing at its link method. Linking looks at what actually turned up and puts a method handle for
+// just that case in front of the current target, guarded by the identity of the function declaration, class or
+// shape it was made for. After LIMIT cases the site is megamorphic and points at the generic path for good.
+// Targets are plain method handle trees, so code that invokes a site with a stable target lets HotSpot inline
+// through it.
+final class Linker {
+    private static final int LIMIT = 4;
+
+    private static final MethodType CALL_TYPE = methodType(Object.class, Interpreter.class, Expr.Call.class, Object.class);
+    private static final MethodType GET_TYPE = methodType(Object.class, LoxInstance.class);
+    private static final MethodType SET_TYPE = methodType(void.class, LoxInstance.class, Object.class);
+
+    private static final MethodHandle LINK_CALL = findVirtual(CallSite.class, "link", CALL_TYPE);
+    private static final MethodHandle LINK_GET = findVirtual(GetSite.class, "link", GET_TYPE);
+    private static final MethodHandle LINK_SET = findVirtual(SetSite.class, "link", SET_TYPE);
+
+    private static final MethodHandle IS_SAME = findStatic("isSame", methodType(boolean.class, Object.class, Object.class));
+    private static final MethodHandle HAS_DECLARATION =
+            findStatic("hasDeclaration", methodType(boolean.class, Stmt.Function.class, Object.class));
+    private static final MethodHandle HAS_SHAPE =
+            findStatic("hasShape", methodType(boolean.class, Shape.class, LoxInstance.class));
+
+    private static final MethodHandle CALL_FUNCTION = findStatic("callFunction", CALL_TYPE);
+    private static final MethodHandle CALL_CLASS = findStatic("callClass", CALL_TYPE.insertParameterTypes(0, LoxClass.class));
+    private static final MethodHandle CALL = findStatic("call", CALL_TYPE);
+    private static final MethodHandle GET_FIELD = findStatic("getField", GET_TYPE.insertParameterTypes(0, int.class));
+    private static final MethodHandle BIND = findStatic("bind", GET_TYPE.insertParameterTypes(0, LoxFunction.class));
+    private static final MethodHandle GET = findStatic("get", methodType(Object.class, LoxInstance.class, Token.class));
+    private static final MethodHandle SET_FIELD = findStatic("setField", SET_TYPE.insertParameterTypes(0, int.class));
+    private static final MethodHandle ADD_FIELD =
+            findStatic("addField", SET_TYPE.insertParameterTypes(0, Shape.class, int.class));
+    private static final MethodHandle SET =
+            findStatic("set", methodType(void.class, LoxInstance.class, Token.class, Object.class));
+
+    private Linker() {
+    }
+
+    // The site for a call with the callee already evaluated.
+    static final class CallSite extends MutableCallSite {
+        private final MethodHandle invoker = dynamicInvoker();
+        private int cases = 0;
+
+        CallSite() {
+            super(CALL_TYPE);
+            setTarget(LINK_CALL.bindTo(this));
+        }
+
+        Object call(Interpreter interpreter, Expr.Call expr, Object callee) {
+            try {
+                return (Object) invoker.invokeExact(interpreter, expr, callee);
+            }
+            catch (RuntimeException | Error error) {
+                throw error;
+            }
+            catch (Throwable error) {
+                throw new IllegalStateException(error);
+            }
+        }
+
+        // Calls that are going to fail, on arity or on not being callable at all, are never linked.
+        private Object link(Interpreter interpreter, Expr.Call expr, Object callee) {
+            if (cases == LIMIT) {
+                setTarget(CALL);
+            }
+            else if (callee instanceof LoxCallable && ((LoxCallable) callee).arity() == expr.arguments.size()) {
+                if (callee instanceof LoxFunction) {
+                    // Every closure made from a declaration runs the same code, so the guard is on the declaration.
+                    relink(HAS_DECLARATION.bindTo(((LoxFunction) callee).declaration), CALL_FUNCTION);
+                }
+                else if (callee instanceof LoxClass) {
+                    relink(IS_SAME.bindTo(callee), CALL_CLASS.bindTo(callee));
+                }
+                else {
+                    relink(IS_SAME.bindTo(callee), CALL);
+                }
+            }
+            return interpreter.call(expr, callee);
+        }
+
+        private void relink(MethodHandle test, MethodHandle target) {
+            test = MethodHandles.dropArguments(test, 0, Interpreter.class, Expr.Call.class);
+            setTarget(MethodHandles.guardWithTest(test, target, getTarget()));
+            cases ++;
+        }
+    }
+
+    static final class GetSite extends MutableCallSite {
+        private final Token name;
+        private final MethodHandle invoker = dynamicInvoker();
+        private int cases = 0;
+
+        GetSite(Token name) {
+            super(GET_TYPE);
+            this.name = name;
+            setTarget(LINK_GET.bindTo(this));
+        }
+
+        Object get(LoxInstance instance) {
+            try {
+                return (Object) invoker.invokeExact(instance);
+            }
+            catch (RuntimeException | Error error) {
+                throw error;
+            }
+            catch (Throwable error) {
+                throw new IllegalStateException(error);
+            }
+        }
+
+        private Object link(LoxInstance instance) {
+            Shape shape = instance.shape;
+            if (cases == LIMIT) {
+                setTarget(MethodHandles.insertArguments(GET, 1, name));
+                return instance.get(name);
+            }
+            int slot = shape.slotOf(name.lexeme());
+            if (slot >= 0) {
+                relink(shape, MethodHandles.insertArguments(GET_FIELD, 0, slot));
+            }
+            else {
+                LoxFunction method = shape.klass.findMethod(name.lexeme());
+                if (method != null) relink(shape, BIND.bindTo(method));
+            }
+            return instance.get(name);
+        }
+
+        private void relink(Shape shape, MethodHandle target) {
+            setTarget(MethodHandles.guardWithTest(HAS_SHAPE.bindTo(shape), target, getTarget()));
+            cases ++;
+        }
+    }
+
+    static final class SetSite extends MutableCallSite {
+        private final Token name;
+        private final MethodHandle invoker = dynamicInvoker();
+        private int cases = 0;
+
+        SetSite(Token name) {
+            super(SET_TYPE);
+            this.name = name;
+            setTarget(LINK_SET.bindTo(this));
+        }
+
+        void set(LoxInstance instance, Object value) {
+            try {
+                invoker.invokeExact(instance, value);
+            }
+            catch (RuntimeException | Error error) {
+                throw error;
+            }
+            catch (Throwable error) {
+                throw new IllegalStateException(error);
+            }
+        }
+
+        private void link(LoxInstance instance, Object value) {
+            Shape shape = instance.shape;
+            if (cases == LIMIT) {
+                setTarget(MethodHandles.insertArguments(SET, 1, name));
+            }
+            else if (shape.slotOf(name.lexeme()) >= 0) {
+                relink(shape, MethodHandles.insertArguments(SET_FIELD, 0, shape.slotOf(name.lexeme())));
+            }
+            else {
+                Shape next = shape.withField(name.lexeme());
+                relink(shape, MethodHandles.insertArguments(ADD_FIELD, 0, next, next.slotOf(name.lexeme())));
+            }
+            instance.set(name, value);
+        }
+
+        private void relink(Shape shape, MethodHandle target) {
+            MethodHandle test = MethodHandles.dropArguments(HAS_SHAPE.bindTo(shape), 1, Object.class);
+            setTarget(MethodHandles.guardWithTest(test, target, getTarget()));
+            cases ++;
+        }
+    }
+
+    private static boolean isSame(Object expected, Object value) {
+        return value == expected;
+    }
+
+    private static boolean hasDeclaration(Stmt.Function declaration, Object callee) {
+        return callee instanceof LoxFunction && ((LoxFunction) callee).declaration == declaration;
+    }
+
+    private static boolean hasShape(Shape shape, LoxInstance instance) {
+        return instance.shape == shape;
+    }
+
+    private static Object callFunction(Interpreter interpreter, Expr.Call expr, Object callee) {
+        LoxFunction function = (LoxFunction) callee;
+        return function.execute(interpreter, interpreter.argumentFrame(expr, function, function.receiver));
+    }
+
+    private static Object callClass(LoxClass klass, Interpreter interpreter, Expr.Call expr, Object callee) {
+        LoxInstance instance = new LoxInstance(klass);
+        if (klass.initializer != null) {
+            klass.initializer.execute(interpreter, interpreter.argumentFrame(expr, klass.initializer, instance));
+        }
+        return instance;
+    }
+
+    private static Object call(Interpreter interpreter, Expr.Call expr, Object callee) {
+        return interpreter.call(expr, callee);
+    }
+
+    private static Object getField(int slot, LoxInstance instance) {
+        return instance.fields[slot];
+    }
+
+    private static Object bind(LoxFunction method, LoxInstance instance) {
+        return method.bind(instance);
+    }
+
+    private static Object get(LoxInstance instance, Token name) {
+        return instance.get(name);
+    }
+
+    private static void setField(int slot, LoxInstance instance, Object value) {
+        instance.fields[slot] = value;
+    }
+
+    private static void addField(Shape next, int slot, LoxInstance instance, Object value) {
+        instance.addField(next, slot, value);
+    }
+
+    private static void set(LoxInstance instance, Token name, Object value) {
+        instance.set(name, value);
+    }
+
+    private static MethodHandle findStatic(String name, MethodType type) {
+        try {
+            return MethodHandles.lookup().findStatic(Linker.class, name, type);
+        }
+        catch (ReflectiveOperationException error) {
+            throw new IllegalStateException(error);
+        }
+    }
+
+    private static MethodHandle findVirtual(Class<?> site, String name, MethodType type) {
+        try {
+            return MethodHandles.lookup().findVirtual(site, name, type);
+        }
+        catch (ReflectiveOperationException error) {
+            throw new IllegalStateException(error);
+        }
+    }
+}
@@ -0,0 +1,508 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Caches the value of expressions that cannot change while a loop runs, such as a bound read from a global or
+// arithmetic on locals the loop never assigns, in a slot of the loop's frame. The slot is emptied each time the
+// loop is entered; the expression is evaluated where it is written, the first time it runs, and reused after
+// that. Evaluating it lazily rather than before the loop keeps an expression that fails, or that sits in a branch
+// that never runs, exactly as it was.
+//
+// An expression is invariant if it is built from literals and variables with the pure operators, and none of its
+// variables can change inside the loop: a local the loop never assigns or declares, or a global the loop never
+// assigns and has no calls that could. Variables in cells, which closures share, never count. Each invariant
+// expression is cached in the outermost loop it is invariant in.
+//
+// A loop in top-level code outside any block has no frame to keep the cache in, so it gets one: a block around
+// it. The blocks inside the loop that had frames of their own run in that one instead, so their locals keep the
+// slots they had and the cache goes after the largest of them.
+final class LoopOptimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    // The loops enclosing the code being rewritten, outermost first.
+    private List<Loop> loops = new ArrayList<>();
+    // The frame the code being rewritten runs in, as in Inliner.
+    private boolean framed = false;
+    private int frameSize;
+
+    static List<Stmt> optimize(List<Stmt> statements) {
+        return new LoopOptimizer().rewriteAll(statements);
+    }
+
+    private LoopOptimizer() {
+    }
+
+    private List<Stmt> rewriteAll(List<Stmt> statements) {
+        List<Stmt> rewritten = new ArrayList<>(statements.size());
+        boolean changed = false;
+        for (Stmt statement : statements) {
+            Stmt result = statement.accept(this);
+            rewritten.add(result);
+            changed |= result != statement;
+        }
+        return changed ? rewritten : statements;
+    }
+
+    private Expr rewrite(Expr expr) {
+        for (Loop loop : loops) {
+            if (!loop.invariant(expr)) continue;
+            if (!worthCaching(expr)) break;
+            int slot = frameSize ++;
+            loop.slots.add(slot);
+            return new Expr.Invariant(expr, slot);
+        }
+        return expr.accept(this);
+    }
+
+    // Literals and locals are no slower to evaluate than the cache would be.
+    private static boolean worthCaching(Expr expr) {
+        if (expr instanceof Expr.Literal || expr instanceof Expr.Invariant) return false;
+        return !(expr instanceof Expr.Variable) || ((Expr.Variable) expr).slot < 0;
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = rewrite(expr.value);
+        if (value == expr.value) return expr;
+        Expr.Assign assign = new Expr.Assign(expr.name, value);
+        assign.slot = expr.slot;
+        assign.upvalue = expr.upvalue;
+        assign.captured = expr.captured;
+        return assign;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr callee = rewrite(expr.callee);
+        List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+        boolean changed = callee != expr.callee;
+        for (Expr argument : expr.arguments) {
+            Expr result = rewrite(argument);
+            arguments.add(result);
+            changed |= result != argument;
+        }
+        if (!changed) return expr;
+        return new Expr.Call(callee, expr.paren, arguments);
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        Expr object = rewrite(expr.object);
+        if (object == expr.object) return expr;
+        return new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr expression = rewrite(expr.expression);
+        if (expression == expr.expression) return expr;
+        return new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitInlineExpr(Expr.Inline expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitInvariantExpr(Expr.Invariant expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicExpr(Expr.Logic expr) {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Logic(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        Expr object = rewrite(expr.object);
+        Expr value = rewrite(expr.value);
+        if (object == expr.object && value == expr.value) return expr;
+        return new Expr.Set(object, expr.name, value);
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = rewrite(expr.right);
+        if (right == expr.right) return expr;
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        if (framed) {
+            // Only a block inside a loop that frameLoop() is giving a frame can still have one of its own here.
+            List<Stmt> statements = rewriteAll(stmt.statements);
+            if (statements == stmt.statements && !stmt.scoped) return stmt;
+            Stmt.Block block = new Stmt.Block(statements);
+            block.scoped = false;
+            return block;
+        }
+        framed = true;
+        frameSize = stmt.scoped ? stmt.frameSize : 0;
+        List<Stmt> statements = rewriteAll(stmt.statements);
+        framed = false;
+        if (statements == stmt.statements) return stmt;
+        Stmt.Block block = new Stmt.Block(statements);
+        block.scoped = stmt.scoped || frameSize > 0;
+        block.frameSize = frameSize;
+        return block;
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        List<Stmt.Function> methods = new ArrayList<>(stmt.methods.size());
+        boolean changed = false;
+        for (Stmt.Function method : stmt.methods) {
+            Stmt.Function result = (Stmt.Function) visitFunctionStmt(method);
+            methods.add(result);
+            changed |= result != method;
+        }
+        if (!changed) return stmt;
+        Stmt.Class klass = new Stmt.Class(stmt.name, stmt.superclass, methods);
+        klass.slot = stmt.slot;
+        klass.superSlot = stmt.superSlot;
+        klass.captured = stmt.captured;
+        return klass;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = rewrite(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Expression(expression);
+    }
+
+    // A function's body runs in a frame of its own, and only when called, so the loops around the declaration
+    // have nothing to do with it.
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        List<Loop> enclosingLoops = loops;
+        boolean enclosingFramed = framed;
+        int enclosingFrameSize = frameSize;
+        loops = new ArrayList<>();
+        framed = true;
+        frameSize = stmt.frameSize;
+        List<Stmt> body = rewriteAll(stmt.body);
+        int size = frameSize;
+        loops = enclosingLoops;
+        framed = enclosingFramed;
+        frameSize = enclosingFrameSize;
+        if (body == stmt.body) return stmt;
+
+        Stmt.Function function = new Stmt.Function(stmt.name, stmt.params, body);
+        function.slot = stmt.slot;
+        function.frameSize = size;
+        function.upvalues = stmt.upvalues;
+        function.capturedSlots = stmt.capturedSlots;
+        function.captured = stmt.captured;
+        return function;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = rewrite(stmt.condition);
+        Stmt thenBranch = stmt.thenBranch.accept(this);
+        Stmt elseBranch = stmt.elseBranch == null ? null : stmt.elseBranch.accept(this);
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch) return stmt;
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = rewrite(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) return stmt;
+        Expr value = rewrite(stmt.value);
+        if (value == stmt.value) return stmt;
+        return new Stmt.Return(stmt.keyword, value);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) return stmt;
+        Expr initializer = rewrite(stmt.initializer);
+        if (initializer == stmt.initializer) return stmt;
+        Stmt.Var var = new Stmt.Var(stmt.name, initializer);
+        var.slot = stmt.slot;
+        var.captured = stmt.captured;
+        return var;
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        if (!framed) return frameLoop(stmt);
+        Loop loop = new Loop(stmt);
+        loops.add(loop);
+        Expr condition = rewrite(stmt.condition);
+        Stmt body = stmt.body.accept(this);
+        loops.remove(loops.size() - 1);
+        if (condition == stmt.condition && body == stmt.body) return stmt;
+
+        Stmt.While result = new Stmt.While(condition, body);
+        result.invariants = stmt.invariants;
+        if (!loop.slots.isEmpty()) {
+            result.invariants = new int[loop.slots.size()];
+            for (int i = 0; i < result.invariants.length; i ++) {
+                result.invariants[i] = loop.slots.get(i);
+            }
+        }
+        return result;
+    }
+
+    private Stmt frameLoop(Stmt.While stmt) {
+        int blocksSize = new Loop(stmt).blockFrameSize;
+        framed = true;
+        frameSize = blocksSize;
+        Stmt result = visitWhileStmt(stmt);
+        framed = false;
+        if (frameSize == blocksSize) return stmt;
+
+        List<Stmt> statements = new ArrayList<>();
+        statements.add(result);
+        Stmt.Block block = new Stmt.Block(statements);
+        block.frameSize = frameSize;
+        return block;
+    }
+
+    // What a loop can change while it runs.
+    private static final class Loop implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        // The slots of the expressions cached for this loop.
+        final List<Integer> slots = new ArrayList<>();
+        private final BitSet assignedSlots = new BitSet();
+        private final Set<String> assignedGlobals = new HashSet<>();
+        private boolean calls = false;
+        // The largest frame of a block inside the loop that has one of its own.
+        int blockFrameSize = 0;
+
+        Loop(Stmt.While stmt) {
+            stmt.condition.accept(this);
+            stmt.body.accept(this);
+        }
+
+        boolean invariant(Expr expr) {
+            if (expr instanceof Expr.Literal || expr instanceof Expr.Invariant) return true;
+            if (expr instanceof Expr.Variable) {
+                Expr.Variable variable = (Expr.Variable) expr;
+                if (variable.upvalue >= 0 || variable.captured) return false;
+                if (variable.slot >= 0) return !assignedSlots.get(variable.slot);
+                return !calls && !assignedGlobals.contains(variable.name.lexeme());
+            }
+            if (expr instanceof Expr.Grouping) return invariant(((Expr.Grouping) expr).expression);
+            if (expr instanceof Expr.Unary) return invariant(((Expr.Unary) expr).right);
+            if (expr instanceof Expr.Binary) {
+                return invariant(((Expr.Binary) expr).left) && invariant(((Expr.Binary) expr).right);
+            }
+            if (expr instanceof Expr.Logic) {
+                return invariant(((Expr.Logic) expr).left) && invariant(((Expr.Logic) expr).right);
+            }
+            return false;
+        }
+
+        private void scan(Expr expr) {
+            if (expr != null) expr.accept(this);
+        }
+
+        private void scan(Stmt stmt) {
+            if (stmt != null) stmt.accept(this);
+        }
+
+        private void assigned(int slot, String name) {
+            if (slot >= 0) {
+                assignedSlots.set(slot);
+            }
+            else {
+                assignedGlobals.add(name);
+            }
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            if (expr.upvalue < 0) assigned(expr.slot, expr.name.lexeme());
+            scan(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            scan(expr.left);
+            scan(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            calls = true;
+            scan(expr.callee);
+            for (Expr argument : expr.arguments) {
+                scan(argument);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            scan(expr.object);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            scan(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitInlineExpr(Expr.Inline expr) {
+            scan(expr.call);
+            return null;
+        }
+
+        @Override
+        public Void visitInvariantExpr(Expr.Invariant expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitLogicExpr(Expr.Logic expr) {
+            scan(expr.left);
+            scan(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            scan(expr.object);
+            scan(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            scan(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            if (stmt.scoped) blockFrameSize = Math.max(blockFrameSize, stmt.frameSize);
+            for (Stmt statement : stmt.statements) {
+                scan(statement);
+            }
+            return null;
+        }
+
+        // The bodies of functions and methods declared in the loop only run when called, which counts as a
+        // call.
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            assigned(stmt.slot, stmt.name.lexeme());
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            scan(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            assigned(stmt.slot, stmt.name.lexeme());
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            scan(stmt.condition);
+            scan(stmt.thenBranch);
+            scan(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            scan(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            scan(stmt.value);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            assigned(stmt.slot, stmt.name.lexeme());
+            scan(stmt.initializer);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            scan(stmt.condition);
+            scan(stmt.body);
+            return null;
+        }
+    }
+}
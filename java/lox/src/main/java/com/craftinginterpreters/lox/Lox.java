@@ -3,37 +3,114 @@ package com.craftinginterpreters.lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 
 public class Lox {
-    private static boolean hadError = false;
-    private static boolean hadRuntimeError =false;
-    private static final Interpreter interpreter = new Interpreter();
+    // Where errors go when running a script from the command line or the prompt.
+    static final ErrorReporter reporter = new ErrorReporter(System.err::println);
+    private static final Interpreter interpreter = new Interpreter(System.out::println, reporter);
+    private static final VM vm = new VM(System.out::println, reporter);
+    private static boolean useVm = false;
+    private static AstCache cache = null;
 
     public static void main(String[] args) throws IOException {
-        if(args.length > 1) {
-            System.out.println("Usage: jlox [script]");
-            System.exit(64);
+        int argument = 0;
+        while (argument < args.length && args[argument].startsWith("--")) {
+            String option = args[argument ++];
+            if (option.equals("--vm")) {
+                useVm = true;
+            }
+            else if (option.equals("--specialize")) {
+                interpreter.specializing = true;
+            }
+            else if (option.equals("--tiered")) {
+                interpreter.tiered = true;
+            }
+            else if (option.equals("--link")) {
+                interpreter.linking = true;
+            }
+            else if (option.equals("--inline")) {
+                interpreter.inlineBudget = Inliner.DEFAULT_BUDGET;
+            }
+            else if (option.startsWith("--inline=")) {
+                try {
+                    interpreter.inlineBudget = Integer.parseInt(option.substring("--inline=".length()));
+                }
+                catch (NumberFormatException error) {
+                    usage();
+                }
+            }
+            else if (option.equals("--cache") && argument < args.length) {
+                cache = new AstCache(Paths.get(args[argument ++]));
+            }
+            else {
+                usage();
+            }
         }
-        else if(args.length == 1) {
-            runFile(args[0]);
+        if(args.length - argument > 1) {
+            runFiles(Arrays.asList(args).subList(argument, args.length));
+        }
+        else if(args.length - argument == 1) {
+            runFile(args[argument]);
         }
         else {
             runPrompt();
         }
     }
 
+    private static void usage() {
+        System.out.println("Usage: jlox [--vm | --specialize | --tiered] [--link] [--inline[=nodes]] [--cache dir] [script...]");
+        System.exit(64);
+    }
+
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
-        if(hadError) {
+        run(Source.map(Paths.get(path)));
+        if(reporter.hadError) {
+            System.exit(65);
+        }
+        if (reporter.hadRuntimeError) {
+            System.exit(70);
+        }
+    }
+
+    // Several scripts are scanned, parsed and resolved in parallel, then run one after another in the order
+    // given. Nothing runs if any of them has an error.
+    private static void runFiles(List<String> paths) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (String path : paths) {
+            files.add(Paths.get(path));
+        }
+        List<FrontEnd.Unit> units;
+        try {
+            units = FrontEnd.compile(files, ForkJoinPool.commonPool(), cache);
+        }
+        catch (UncheckedIOException error) {
+            throw error.getCause();
+        }
+        for (FrontEnd.Unit unit : units) {
+            for (String diagnostic : unit.errors.diagnostics()) {
+                System.err.println(unit.path + ": " + diagnostic);
+            }
+            if (unit.errors.hadError) reporter.hadError = true;
+        }
+        if (reporter.hadError) {
+            System.exit(65);
+        }
+        for (FrontEnd.Unit unit : units) {
+            execute(unit.statements);
+            if (reporter.hadError || reporter.hadRuntimeError) break;
+        }
+        if(reporter.hadError) {
             System.exit(65);
         }
-        if (hadRuntimeError) {
+        if (reporter.hadRuntimeError) {
             System.exit(70);
         }
     }
@@ -45,48 +122,46 @@ public class Lox {
             System.out.println("> ");
             String line = reader.readLine();
             if(line == null) break;
-            run(line);
-            hadError = false;
+            run(Source.of(line));
+            reporter.hadError = false;
         }
     }
 
-    private static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-        Parser parser = new Parser(tokens);
+    private static void run(Source source) {
+        String hash = null;
+        if (cache != null) {
+            hash = source.hash();
+            List<Stmt> cached = cache.load(hash);
+            if (cached != null) {
+                execute(cached);
+                return;
+            }
+        }
+
+        Parser parser = new Parser(new Scanner(source, reporter), reporter);
         List<Stmt> statements = parser.parse();
 
         // Stop if there was a syntax error
-        if(hadError) return;
+        if(reporter.hadError) return;
 
-        Resolver resolver = new Resolver(interpreter);
+        Resolver resolver = new Resolver(reporter);
         resolver.resolve(statements);
-        if (hadError) return;
-
-        interpreter.interpret(statements);
-    }
+        if (reporter.hadError) return;
+        statements = Optimizer.optimize(statements);
 
-    static void error(int line, String message) {
-        report(line, "", message);
+        // Stored before running, while the tree holds nothing but what the front end put there.
+        if (cache != null) cache.store(hash, statements);
+        execute(statements);
     }
 
-    static void error(Token token, String message) {
-        if(token.type == TokenType.EOF) {
-            report(token.line, " at end", message);
+    private static void execute(List<Stmt> statements) {
+        if (useVm) {
+            ObjFunction script = new Compiler(vm, reporter).compile(statements);
+            if (reporter.hadError) return;
+            vm.interpret(script);
+            return;
         }
-        else {
-            report(token.line, " at '" + token.lexeme + "'", message);
-        }
-    }
-
-    private static void report(int line, String where, String message) {
-        System.err.println("[line ]" + line + "] Error " + where + ": " + message);
-        hadError = true;
-    }
-
-    static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() + "\n[line " + error.token.line + "]");
-        hadRuntimeError = true;
+        interpreter.interpret(statements);
     }
 
 
@@ -1,8 +1,6 @@
 package com.craftinginterpreters.lox;
 
-import java.util.List;
-
 interface LoxCallable {
     int arity();
-    Object call(Interpreter interpreter, List<Object> arguments);
+    Object call(Interpreter interpreter, Object[] arguments);
 }
@@ -1,17 +1,21 @@
 package com.craftinginterpreters.lox;
 
-import java.util.List;
 import java.util.Map;
 
 public class LoxClass implements LoxCallable{
     final String name;
     final LoxClass superclass;
     private final Map<String, LoxFunction> methods;
+    final LoxFunction initializer;
+    final Shape rootShape = new Shape(this);
+    // How many fields a new instance has room for, grown as instances turn out to need more.
+    int fieldCapacity = 0;
 
     LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods) {
         this.superclass = superclass;
         this.name = name;
         this.methods = methods;
+        this.initializer = findMethod("init");
     }
 
     LoxFunction findMethod(String name) {
@@ -31,17 +35,15 @@ public class LoxClass implements LoxCallable{
 
     @Override
     public int arity() {
-        LoxFunction initializer = findMethod("init");
         if (initializer == null) return 0;
         return initializer.arity();
     }
 
     @Override
-    public Object call(Interpreter interpreter, List<Object> arguments) {
+    public Object call(Interpreter interpreter, Object[] arguments) {
         LoxInstance instance = new LoxInstance(this);
-        LoxFunction initializer = findMethod("init");
         if (initializer != null) {
-            initializer.bind(instance).call(interpreter, arguments);
+            initializer.call(interpreter, instance, arguments);
         }
         return instance;
     }
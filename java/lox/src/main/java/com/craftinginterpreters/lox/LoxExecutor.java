@@ -0,0 +1,59 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Runs scripts concurrently, each on its own virtual thread with its own LoxRuntime, so a node can run a great
+// many short scripts without a platform thread for each. Cancelling a script's future cancels its budget, which
+// stops the script at its next check.
+public final class LoxExecutor implements AutoCloseable {
+    // What a script printed and how it ended. Syntax and runtime errors end up here; a script that exhausts its
+    // budget completes its future exceptionally with Budget.Exhausted instead.
+    public static final class Outcome {
+        public final LoxRuntime.Result result;
+        public final String output;
+        public final List<String> errors;
+
+        Outcome(LoxRuntime.Result result, String output, List<String> errors) {
+            this.result = result;
+            this.output = output;
+            this.errors = errors;
+        }
+    }
+
+    private final ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor();
+
+    // Use Budget.unlimited() for a script that may run as long as it likes; it can still be cancelled.
+    public CompletableFuture<Outcome> submit(String source, Budget budget) {
+        Objects.requireNonNull(budget, "budget");
+        CompletableFuture<Outcome> future = new CompletableFuture<>();
+        future.whenComplete((outcome, error) -> {
+            if (future.isCancelled()) budget.cancel();
+        });
+        threads.execute(() -> {
+            if (future.isDone()) return;
+            StringBuilder output = new StringBuilder();
+            List<String> errors = new ArrayList<>();
+            try {
+                LoxRuntime runtime = new LoxRuntime(line -> output.append(line).append('\n'), errors::add);
+                LoxRuntime.Result result = runtime.run(source, budget);
+                future.complete(new Outcome(result, output.toString(), Collections.unmodifiableList(errors)));
+            }
+            catch (Throwable error) {
+                future.completeExceptionally(error);
+            }
+        });
+        return future;
+    }
+
+    // Waits for every submitted script to finish.
+    @Override
+    public void close() {
+        threads.close();
+    }
+}
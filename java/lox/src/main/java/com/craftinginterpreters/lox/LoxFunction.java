@@ -1,27 +1,34 @@
 package com.craftinginterpreters.lox;
 
-import java.util.List;
-
 public class LoxFunction implements LoxCallable{
-    private final Stmt.Function declaration;
-    private final Environment closure;
+    final Stmt.Function declaration;
+    // Only what the function captured from enclosing functions, not the environments it was made in.
+    private final Object[] upvalues;
+    private final boolean isMethod;
     private final boolean isInitializer;
+    // Set on a method that has been bound to an instance; null for plain functions and unbound methods.
+    final LoxInstance receiver;
+
+    LoxFunction(Stmt.Function declaration, Object[] upvalues, boolean isMethod, boolean isInitializer) {
+        this(declaration, upvalues, isMethod, isInitializer, null);
+    }
 
-    LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
+    private LoxFunction(Stmt.Function declaration, Object[] upvalues, boolean isMethod, boolean isInitializer,
+                        LoxInstance receiver) {
+        this.isMethod = isMethod;
         this.isInitializer = isInitializer;
         this.declaration = declaration;
-        this.closure = closure;
+        this.upvalues = upvalues;
+        this.receiver = receiver;
     }
 
     LoxFunction bind(LoxInstance instance) {
-        Environment environment = new Environment(closure);
-        environment.define("this", instance);
-        return new LoxFunction(declaration, environment, isInitializer);
+        return new LoxFunction(declaration, upvalues, isMethod, isInitializer, instance);
     }
 
     @Override
     public String toString() {
-        return "<fn " + declaration.name.lexeme + ">";
+        return "<fn " + declaration.name.lexeme() + ">";
     }
 
     @Override
@@ -30,21 +37,71 @@ public class LoxFunction implements LoxCallable{
     }
 
     @Override
-    public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(closure);
-        for (int i = 0; i < declaration.params.size(); ++ i) {
-            environment.define(declaration.params.get(i).lexeme, arguments.get(i));
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        return call(interpreter, receiver, arguments);
+    }
+
+    // Calls a method on an instance without binding it first.
+    Object call(Interpreter interpreter, LoxInstance receiver, Object[] arguments) {
+        Environment frame = frame(receiver);
+        for (int i = 0; i < arguments.length; ++ i) {
+            frame.define(parameter(i), arguments[i]);
+        }
+        return execute(interpreter, frame);
+    }
+
+    // A new environment for a call, sized for all of the function's top-level variables and holding just the
+    // receiver so far. The receiver goes in slot 0, where the Resolver put "this"; the caller defines the
+    // arguments after it.
+    Environment frame(LoxInstance receiver) {
+        Environment frame = new Environment(upvalues, declaration.frameSize);
+        if (receiver != null) {
+            frame.define("this", receiver);
+        }
+        return frame;
+    }
+
+    String parameter(int index) {
+        return declaration.params.get(index).lexeme();
+    }
+
+    // Whether this is a plain function, not a method, made from the given declaration.
+    boolean isPlainFunction(Stmt.Function declaration) {
+        return this.declaration == declaration && !isMethod;
+    }
+
+    Object execute(Interpreter interpreter, Environment frame) {
+        for (int slot : declaration.capturedSlots) {
+            frame.box(slot);
         }
+        // Compiled code does not charge a budget, so a run with one stays in the Interpreter.
+        if (!interpreter.tiered || isMethod || interpreter.budget != null) {
+            return interpret(interpreter, frame);
+        }
+        CompiledFunction compiled = Jit.compiled(declaration);
+        if (compiled != null) {
+            Object result = compiled.invoke(interpreter, frame);
+            if (result != JitRuntime.DEOPTIMIZE) return result;
+            Jit.deoptimize(declaration);
+        }
+        Stmt.Function caller = interpreter.function;
+        interpreter.function = declaration;
         try {
-            interpreter.executeBlock(declaration.body, environment);
+            return interpret(interpreter, frame);
+        }
+        finally {
+            interpreter.function = caller;
         }
-        catch (Return returnValue) {
-            if (isInitializer) {
-                return closure.getAt(0, "this");
-            }
-            return returnValue.value;
+    }
+
+    private Object interpret(Interpreter interpreter, Environment frame) {
+        Interpreter.Completion completion = interpreter.executeBlock(declaration.body, frame);
+        if (isInitializer) return frame.getAt(0);
+        if (completion == Interpreter.Completion.RETURN) {
+            Object value = interpreter.returnValue;
+            interpreter.returnValue = null;
+            return value;
         }
-        if (isInitializer) return closure.getAt(0, "this");
         return null;
     }
 }
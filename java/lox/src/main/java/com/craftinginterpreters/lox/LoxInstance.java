@@ -1,27 +1,47 @@
 package com.craftinginterpreters.lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 public class LoxInstance {
-    private LoxClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
+    private final LoxClass klass;
+    // Field values, indexed by the slot the shape assigns each field name.
+    Shape shape;
+    Object[] fields;
 
     LoxInstance(LoxClass klass) {
         this.klass = klass;
+        this.shape = klass.rootShape;
+        this.fields = new Object[klass.fieldCapacity];
     }
 
     Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
+        int slot = shape.slotOf(name.lexeme());
+        if (slot >= 0) {
+            return fields[slot];
         }
-        LoxFunction method = klass.findMethod(name.lexeme);
+        LoxFunction method = klass.findMethod(name.lexeme());
         if (method != null) return method.bind(this);
-        throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+        throw new RuntimeError(name, "Undefined property '" + name.lexeme() + "'.");
     }
 
     void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+        int slot = shape.slotOf(name.lexeme());
+        if (slot >= 0) {
+            fields[slot] = value;
+            return;
+        }
+        Shape next = shape.withField(name.lexeme());
+        addField(next, next.slotOf(name.lexeme()), value);
+    }
+
+    void addField(Shape next, int slot, Object value) {
+        if (slot == fields.length) {
+            fields = Arrays.copyOf(fields, Math.max(4, fields.length * 2));
+            // Later instances of the class start out big enough for the fields this one ended up with.
+            klass.fieldCapacity = Math.max(klass.fieldCapacity, fields.length);
+        }
+        fields[slot] = value;
+        shape = next;
     }
 
     @Override
@@ -0,0 +1,75 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+// An embeddable Lox interpreter. Each runtime has its own globals, its own output and error sinks and its own
+// resolved syntax trees, and shares no mutable state with any other runtime, so any number of them can run
+// scripts at the same time on platform or virtual threads. Globals defined by one script stay visible to the
+// next script run on the same runtime. A runtime runs one script at a time.
+public final class LoxRuntime {
+    public enum Result {
+        OK,
+        // Nothing ran: the script has a syntax or resolution error.
+        COMPILE_ERROR,
+        RUNTIME_ERROR
+    }
+
+    private final ErrorReporter errors;
+    private final Interpreter interpreter;
+
+    public LoxRuntime(OutputSink out, OutputSink errors) {
+        this.errors = new ErrorReporter(errors);
+        this.interpreter = new Interpreter(out, this.errors);
+    }
+
+    // Turns on the self-specializing nodes, as --specialize does.
+    public LoxRuntime specializing() {
+        interpreter.specializing = true;
+        return this;
+    }
+
+    // Turns on compiling hot functions, as --tiered does.
+    public LoxRuntime tiered() {
+        interpreter.tiered = true;
+        return this;
+    }
+
+    // Sends calls and property accesses through relinkable call sites, as --link does.
+    public LoxRuntime linking() {
+        interpreter.linking = true;
+        return this;
+    }
+
+    // Inlines calls to global functions of up to budget syntax tree nodes, as --inline does. Ignored when tiered.
+    public LoxRuntime inlining(int budget) {
+        interpreter.inlineBudget = budget;
+        return this;
+    }
+
+    public Result run(String source) {
+        return run(source, null);
+    }
+
+    // Runs the script within the budget, if there is one. Throws Budget.Exhausted if the script uses it up, or
+    // CancellationException if the budget is cancelled.
+    public synchronized Result run(String source, Budget budget) {
+        if (budget != null) budget.start();
+        errors.hadError = false;
+        errors.hadRuntimeError = false;
+
+        List<Stmt> statements = new Parser(new Scanner(Source.of(source), errors), errors).parse();
+        if (errors.hadError) return Result.COMPILE_ERROR;
+        new Resolver(errors).resolve(statements);
+        if (errors.hadError) return Result.COMPILE_ERROR;
+        statements = Optimizer.optimize(statements);
+
+        interpreter.budget = budget;
+        try {
+            interpreter.interpret(statements);
+        }
+        finally {
+            interpreter.budget = null;
+        }
+        return errors.hadRuntimeError ? Result.RUNTIME_ERROR : Result.OK;
+    }
+}
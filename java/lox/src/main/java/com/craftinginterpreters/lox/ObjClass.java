@@ -0,0 +1,20 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+final class ObjClass {
+    final String name;
+    final Map<String, ObjClosure> methods = new HashMap<>();
+    // Cached so that instantiation doesn't have to look it up.
+    ObjClosure initializer;
+
+    ObjClass(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,19 @@
+package com.craftinginterpreters.lox;
+
+final class ObjFunction {
+    final String name;
+    final Chunk chunk = new Chunk();
+    int arity = 0;
+    int upvalueCount = 0;
+    int maxStack = 0;
+
+    ObjFunction(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        if (name == null) return "<script>";
+        return "<fn " + name + ">";
+    }
+}
@@ -0,0 +1,14 @@
+package com.craftinginterpreters.lox;
+
+// A captured variable. While open it points at a slot on the VM stack; once the
+// variable goes out of scope the value is moved into the upvalue itself.
+final class ObjUpvalue {
+    int location;
+    boolean closed = false;
+    Object value;
+    ObjUpvalue next;
+
+    ObjUpvalue(int location) {
+        this.location = location;
+    }
+}
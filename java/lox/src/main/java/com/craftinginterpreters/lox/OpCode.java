@@ -0,0 +1,53 @@
+package com.craftinginterpreters.lox;
+
+// The instruction set of the bytecode VM. Operands follow the opcode in the chunk: constant indexes, global
+// slots and jump offsets are two bytes, big-endian; local slots, upvalue indexes and argument counts are one byte.
+final class OpCode {
+    static final byte OP_CONSTANT = 0;
+    static final byte OP_NIL = 1;
+    static final byte OP_TRUE = 2;
+    static final byte OP_FALSE = 3;
+    static final byte OP_POP = 4;
+    static final byte OP_GET_LOCAL = 5;
+    static final byte OP_SET_LOCAL = 6;
+    static final byte OP_GET_GLOBAL = 7;
+    static final byte OP_DEFINE_GLOBAL = 8;
+    static final byte OP_SET_GLOBAL = 9;
+    static final byte OP_GET_UPVALUE = 10;
+    static final byte OP_SET_UPVALUE = 11;
+    static final byte OP_GET_PROPERTY = 12;
+    static final byte OP_SET_PROPERTY = 13;
+    static final byte OP_GET_SUPER = 14;
+    static final byte OP_EQUAL = 15;
+    static final byte OP_NOT_EQUAL = 16;
+    static final byte OP_GREATER = 17;
+    static final byte OP_GREATER_EQUAL = 18;
+    static final byte OP_LESS = 19;
+    static final byte OP_LESS_EQUAL = 20;
+    static final byte OP_ADD = 21;
+    static final byte OP_SUBTRACT = 22;
+    static final byte OP_MULTIPLY = 23;
+    static final byte OP_DIVIDE = 24;
+    static final byte OP_NOT = 25;
+    static final byte OP_NEGATE = 26;
+    static final byte OP_PRINT = 27;
+    static final byte OP_JUMP = 28;
+    static final byte OP_JUMP_IF_FALSE = 29;
+    static final byte OP_LOOP = 30;
+    static final byte OP_CALL = 31;
+    static final byte OP_INVOKE = 32;
+    static final byte OP_SUPER_INVOKE = 33;
+    static final byte OP_CLOSURE = 34;
+    static final byte OP_CLOSE_UPVALUE = 35;
+    static final byte OP_RETURN = 36;
+    static final byte OP_CLASS = 37;
+    static final byte OP_INHERIT = 38;
+    static final byte OP_METHOD = 39;
+    // Fused forms of common sequences, to save dispatches in loops: a conditional jump that pops its condition,
+    // and a local store whose value is discarded.
+    static final byte OP_POP_JUMP_IF_FALSE = 40;
+    static final byte OP_STORE_LOCAL = 41;
+
+    private OpCode() {
+    }
+}
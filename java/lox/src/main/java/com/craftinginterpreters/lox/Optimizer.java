@@ -0,0 +1,290 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Runs over resolved syntax trees before they are executed. It folds expressions whose operands are all
+// literals, drops the branches of ifs and whiles whose conditions are literals and can never run, and strips
+// parentheses, which only ever mattered to the Parser.
+//
+// Only what every engine agrees on is folded. An operation that would fail at runtime, such as dividing by
+// zero or negating a string, is left alone, so the error is still reported from the same place when the code
+// runs. Nodes are rebuilt only where something below them changed, and a rebuilt node keeps what the Resolver
+// worked out for the original.
+//
+// Loops are then handed to LoopOptimizer, once folding has left their expressions in their simplest form.
+final class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    // What fold() returns for an operation it leaves to the runtime.
+    private static final Object NOT_CONSTANT = new Object();
+
+    static List<Stmt> optimize(List<Stmt> statements) {
+        return LoopOptimizer.optimize(new Optimizer().optimizeAll(statements));
+    }
+
+    private Optimizer() {
+    }
+
+    // Dead statements are dropped from the list.
+    private List<Stmt> optimizeAll(List<Stmt> statements) {
+        List<Stmt> optimized = new ArrayList<>(statements.size());
+        boolean changed = false;
+        for (Stmt statement : statements) {
+            Stmt result = statement.accept(this);
+            if (result != null) optimized.add(result);
+            changed |= result != statement;
+        }
+        return changed ? optimized : statements;
+    }
+
+    private Expr optimize(Expr expr) {
+        return expr.accept(this);
+    }
+
+    // A branch or loop body has to be some statement, so one that is dead becomes an empty block.
+    private Stmt optimizeBranch(Stmt stmt) {
+        Stmt result = stmt.accept(this);
+        if (result != null) return result;
+        Stmt.Block empty = new Stmt.Block(new ArrayList<>());
+        empty.scoped = false;
+        return empty;
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = optimize(expr.value);
+        if (value == expr.value) return expr;
+        Expr.Assign assign = new Expr.Assign(expr.name, value);
+        assign.slot = expr.slot;
+        assign.upvalue = expr.upvalue;
+        assign.captured = expr.captured;
+        return assign;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+        if (left instanceof Expr.Literal && right instanceof Expr.Literal) {
+            Object value = fold(expr.operator, ((Expr.Literal) left).value, ((Expr.Literal) right).value);
+            if (value != NOT_CONSTANT) return new Expr.Literal(value);
+        }
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    // Equality works on anything. + is folded for two numbers or two strings, where the Interpreter and the VM
+    // agree, and everything else only for numbers, except division by zero.
+    private static Object fold(Token operator, Object left, Object right) {
+        boolean numbers = left instanceof Double && right instanceof Double;
+        switch (operator.type) {
+            case EQUAL_EQUAL:
+            case BANG_EQUAL:
+                break;
+            case PLUS:
+                if (!numbers && !(left instanceof String && right instanceof String)) return NOT_CONSTANT;
+                break;
+            case SLASH:
+                if (!numbers || (double) right == 0) return NOT_CONSTANT;
+                break;
+            default:
+                if (!numbers) return NOT_CONSTANT;
+        }
+        return Interpreter.binary(operator, left, right);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr callee = optimize(expr.callee);
+        List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+        boolean changed = callee != expr.callee;
+        for (Expr argument : expr.arguments) {
+            Expr result = optimize(argument);
+            arguments.add(result);
+            changed |= result != argument;
+        }
+        if (!changed) return expr;
+        return new Expr.Call(callee, expr.paren, arguments);
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        Expr object = optimize(expr.object);
+        if (object == expr.object) return expr;
+        return new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        return optimize(expr.expression);
+    }
+
+    @Override
+    public Expr visitInlineExpr(Expr.Inline expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitInvariantExpr(Expr.Invariant expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    // A literal on the left decides whether the right is evaluated at all, and and/or give back one of their
+    // operands rather than a boolean.
+    @Override
+    public Expr visitLogicExpr(Expr.Logic expr) {
+        Expr left = optimize(expr.left);
+        if (left instanceof Expr.Literal) {
+            boolean truthy = Interpreter.isTruthy(((Expr.Literal) left).value);
+            boolean shortCircuits = expr.operator.type == TokenType.OR ? truthy : !truthy;
+            return shortCircuits ? left : optimize(expr.right);
+        }
+        Expr right = optimize(expr.right);
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Logic(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        Expr object = optimize(expr.object);
+        Expr value = optimize(expr.value);
+        if (object == expr.object && value == expr.value) return expr;
+        return new Expr.Set(object, expr.name, value);
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = optimize(expr.right);
+        if (right instanceof Expr.Literal) {
+            Object value = ((Expr.Literal) right).value;
+            if (expr.operator.type == TokenType.BANG) {
+                return new Expr.Literal(!Interpreter.isTruthy(value));
+            }
+            if (value instanceof Double) {
+                return new Expr.Literal(-(double) value);
+            }
+        }
+        if (right == expr.right) return expr;
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        List<Stmt> statements = optimizeAll(stmt.statements);
+        if (statements == stmt.statements) return stmt;
+        Stmt.Block block = new Stmt.Block(statements);
+        block.scoped = stmt.scoped;
+        block.frameSize = stmt.frameSize;
+        return block;
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        List<Stmt.Function> methods = new ArrayList<>(stmt.methods.size());
+        boolean changed = false;
+        for (Stmt.Function method : stmt.methods) {
+            Stmt.Function result = (Stmt.Function) visitFunctionStmt(method);
+            methods.add(result);
+            changed |= result != method;
+        }
+        if (!changed) return stmt;
+        Stmt.Class klass = new Stmt.Class(stmt.name, stmt.superclass, methods);
+        klass.slot = stmt.slot;
+        klass.superSlot = stmt.superSlot;
+        klass.captured = stmt.captured;
+        return klass;
+    }
+
+    // A literal on its own does nothing.
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = optimize(stmt.expression);
+        if (expression instanceof Expr.Literal) return null;
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        List<Stmt> body = optimizeAll(stmt.body);
+        if (body == stmt.body) return stmt;
+        Stmt.Function function = new Stmt.Function(stmt.name, stmt.params, body);
+        function.slot = stmt.slot;
+        function.frameSize = stmt.frameSize;
+        function.upvalues = stmt.upvalues;
+        function.capturedSlots = stmt.capturedSlots;
+        function.captured = stmt.captured;
+        return function;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (condition instanceof Expr.Literal) {
+            if (Interpreter.isTruthy(((Expr.Literal) condition).value)) return stmt.thenBranch.accept(this);
+            return stmt.elseBranch == null ? null : stmt.elseBranch.accept(this);
+        }
+        Stmt thenBranch = optimizeBranch(stmt.thenBranch);
+        Stmt elseBranch = stmt.elseBranch == null ? null : optimizeBranch(stmt.elseBranch);
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch) return stmt;
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = optimize(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) return stmt;
+        Expr value = optimize(stmt.value);
+        if (value == stmt.value) return stmt;
+        return new Stmt.Return(stmt.keyword, value);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) return stmt;
+        Expr initializer = optimize(stmt.initializer);
+        if (initializer == stmt.initializer) return stmt;
+        Stmt.Var var = new Stmt.Var(stmt.name, initializer);
+        var.slot = stmt.slot;
+        var.captured = stmt.captured;
+        return var;
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (condition instanceof Expr.Literal && !Interpreter.isTruthy(((Expr.Literal) condition).value)) {
+            return null;
+        }
+        Stmt body = optimizeBranch(stmt.body);
+        if (condition == stmt.condition && body == stmt.body) return stmt;
+        Stmt.While loop = new Stmt.While(condition, body);
+        loop.invariants = stmt.invariants;
+        return loop;
+    }
+}
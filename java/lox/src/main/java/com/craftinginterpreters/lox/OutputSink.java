@@ -0,0 +1,7 @@
+package com.craftinginterpreters.lox;
+
+// Where a script's printed output or error messages go, one line at a time.
+@FunctionalInterface
+public interface OutputSink {
+    void println(String line);
+}
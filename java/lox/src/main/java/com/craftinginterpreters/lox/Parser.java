@@ -10,11 +10,21 @@ import static com.craftinginterpreters.lox.TokenType.*;
 public class Parser {
     private static class ParseError extends RuntimeException {}
 
-    private final List<Token> tokens;
-    private int current = 0;
+    // The Parser never looks more than one token ahead, so it only keeps the current token and the one before.
+    private final TokenStream tokens;
+    private final ErrorReporter reporter;
+    private Token current;
+    private Token previous;
 
     Parser(List<Token> tokens) {
+        this(TokenStream.of(tokens), Lox.reporter);
+    }
+
+    // Parsing straight from a Scanner scans the source as the parse goes.
+    Parser(TokenStream tokens, ErrorReporter reporter) {
         this.tokens = tokens;
+        this.reporter = reporter;
+        this.current = tokens.next();
     }
 
     List<Stmt> parse() {
@@ -256,7 +266,10 @@ public class Parser {
     }
 
     private Token advance() {
-        if(!isAtEnd()) current ++ ;
+        if(!isAtEnd()) {
+            previous = current;
+            current = tokens.next();
+        }
         return previous();
     }
 
@@ -265,11 +278,11 @@ public class Parser {
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return current;
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return previous;
     }
 
     private Expr comparison() {
@@ -374,7 +387,7 @@ public class Parser {
     }
 
     private  ParseError error(Token token, String message) {
-        Lox.error(token, message);
+        reporter.error(token, message);
         return new ParseError();
     }
 
@@ -0,0 +1,102 @@
+package com.craftinginterpreters.lox;
+
+// A polymorphic inline cache on an Expr.Get or Expr.Set. It remembers what the property resolved to for the
+// last few shapes seen at that spot in the program: a field slot, a method, or for a Set that adds a field, the
+// shape the instance moves to. Classes never change their methods after they are created, so a cached method
+// stays right for as long as its shape does. Once more than LIMIT shapes have come by, the site is treated as
+// megamorphic and misses simply take the slow path.
+final class PropertyCache {
+    private static final int LIMIT = 4;
+
+    private final Shape[] shapes = new Shape[LIMIT];
+    private final int[] slots = new int[LIMIT];
+    private final LoxFunction[] methods = new LoxFunction[LIMIT];
+    private final Shape[] transitions = new Shape[LIMIT];
+    private int size = 0;
+
+    Object get(LoxInstance instance, Token name) {
+        Shape shape = instance.shape;
+        for (int i = 0; i < size; i ++) {
+            if (shapes[i] == shape) {
+                LoxFunction method = methods[i];
+                if (method == null) return instance.fields[slots[i]];
+                return method.bind(instance);
+            }
+        }
+        if (size == LIMIT) {
+            return instance.get(name);
+        }
+
+        int slot = shape.slotOf(name.lexeme());
+        if (slot >= 0) {
+            add(shape, slot, null, null);
+            return instance.fields[slot];
+        }
+        LoxFunction method = shape.klass.findMethod(name.lexeme());
+        if (method == null) {
+            throw new RuntimeError(name, "Undefined property '" + name.lexeme() + "'.");
+        }
+        add(shape, -1, method, null);
+        return method.bind(instance);
+    }
+
+    // The method the property resolves to on this instance, or null if it is a field or does not exist. This
+    // lets obj.method() call the method with its receiver directly instead of binding it first.
+    LoxFunction method(LoxInstance instance, Token name) {
+        Shape shape = instance.shape;
+        for (int i = 0; i < size; i ++) {
+            if (shapes[i] == shape) {
+                return methods[i];
+            }
+        }
+        int slot = shape.slotOf(name.lexeme());
+        if (slot >= 0) {
+            if (size < LIMIT) add(shape, slot, null, null);
+            return null;
+        }
+        LoxFunction method = shape.klass.findMethod(name.lexeme());
+        if (method != null && size < LIMIT) {
+            add(shape, -1, method, null);
+        }
+        return method;
+    }
+
+    void set(LoxInstance instance, Token name, Object value) {
+        Shape shape = instance.shape;
+        for (int i = 0; i < size; i ++) {
+            if (shapes[i] == shape) {
+                Shape transition = transitions[i];
+                if (transition == null) {
+                    instance.fields[slots[i]] = value;
+                }
+                else {
+                    instance.addField(transition, slots[i], value);
+                }
+                return;
+            }
+        }
+        if (size == LIMIT) {
+            instance.set(name, value);
+            return;
+        }
+
+        int slot = shape.slotOf(name.lexeme());
+        if (slot >= 0) {
+            add(shape, slot, null, null);
+            instance.fields[slot] = value;
+            return;
+        }
+        Shape transition = shape.withField(name.lexeme());
+        slot = transition.slotOf(name.lexeme());
+        add(shape, slot, null, transition);
+        instance.addField(transition, slot, value);
+    }
+
+    private void add(Shape shape, int slot, LoxFunction method, Shape transition) {
+        shapes[size] = shape;
+        slots[size] = slot;
+        methods[size] = method;
+        transitions[size] = transition;
+        size ++;
+    }
+}
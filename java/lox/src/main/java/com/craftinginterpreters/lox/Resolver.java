@@ -1,19 +1,26 @@
 package com.craftinginterpreters.lox;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
 
 public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-    private final Interpreter interpreter;
-
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    private final ErrorReporter reporter;
+    private final Stack<Map<String, Local>> scopes = new Stack<>();
     private FunctionType currentFunction = FunctionType.NONE;
+    // Starts out as the top level, which encloses every function and captures nothing itself.
+    private FunctionScope functionScope = new FunctionScope(null, 0);
+
+    Resolver() {
+        this(Lox.reporter);
+    }
 
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+    Resolver(ErrorReporter reporter) {
+        this.reporter = reporter;
     }
+
     private enum FunctionType {
         NONE,
         FUNCTION,
@@ -29,10 +36,77 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     private ClassType currentClass = ClassType.NONE;
 
+    // The slot is the variable's index in the frame of the function it belongs to, and scope is the index of its
+    // scope in scopes.
+    private static class Local {
+        final int slot;
+        final int scope;
+        boolean defined = false;
+        // Set once a closure captures the variable. Its declaration and every use resolved so far in its own
+        // function are marked when its scope ends, so all of them know the slot holds a Cell.
+        boolean captured = false;
+        Stmt declaration;
+        final List<Expr> uses = new ArrayList<>();
+
+        Local(int slot, int scope) {
+            this.slot = slot;
+            this.scope = scope;
+        }
+
+        void markCaptured() {
+            for (Expr use : uses) {
+                if (use instanceof Expr.Variable) {
+                    ((Expr.Variable) use).captured = true;
+                }
+                else {
+                    ((Expr.Assign) use).captured = true;
+                }
+            }
+            if (declaration instanceof Stmt.Var) {
+                ((Stmt.Var) declaration).captured = true;
+            }
+            else if (declaration instanceof Stmt.Function) {
+                ((Stmt.Function) declaration).captured = true;
+            }
+            else if (declaration instanceof Stmt.Class) {
+                ((Stmt.Class) declaration).captured = true;
+            }
+        }
+    }
+
+    // A function being resolved. base is the index in scopes of its outermost scope: a variable found further
+    // out belongs to an enclosing function, and is reached through one of this function's upvalues.
+    //
+    // Block scopes do not get environments of their own. Their variables take the next free slots of the
+    // function's frame, which are free again once the block ends, and frameSize is the most it ever needs.
+    // Nothing outlives a block by holding on to its slots: a closure captures the Cell in a slot, not the slot.
+    private static class FunctionScope {
+        final FunctionScope enclosing;
+        final int base;
+        final Map<Local, Integer> upvalueIndexes = new HashMap<>();
+        final List<Integer> upvalues = new ArrayList<>();
+        int locals = 0;
+        int frameSize = 0;
+
+        FunctionScope(FunctionScope enclosing, int base) {
+            this.enclosing = enclosing;
+            this.base = base;
+        }
+    }
+
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+        Local local = resolveLocal(expr.name);
+        if (local == null) return null;
+        if (isLocal(local)) {
+            expr.slot = local.slot;
+            local.uses.add(expr);
+        }
+        else {
+            expr.upvalue = capture(functionScope, local);
+            expr.captured = true;
+        }
         return null;
     }
 
@@ -65,6 +139,19 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    // Inlining runs after resolution; an inlined call resolves as the call it replaced.
+    @Override
+    public Void visitInlineExpr(Expr.Inline expr) {
+        resolve(expr.call);
+        return null;
+    }
+
+    @Override
+    public Void visitInvariantExpr(Expr.Invariant expr) {
+        resolve(expr.expression);
+        return null;
+    }
+
     @Override
     public Void visitLiteralExpr(Expr.Literal expr) {
         return null;
@@ -87,21 +174,35 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitSuperExpr(Expr.Super expr) {
         if (currentClass == ClassType.NONE) {
-            Lox.error(expr.keyword, "Can't use 'super' outside of a class");
+            reporter.error(expr.keyword, "Can't use 'super' outside of a class");
         }
         else if (currentClass != ClassType.SUBCLASS) {
-            Lox.error(expr.keyword, "Can't use 'super' in a class with no superclass.");
+            reporter.error(expr.keyword, "Can't use 'super' in a class with no superclass.");
+        }
+        else {
+            // "super" is declared outside the method, so it is always an upvalue. The receiver is resolved
+            // like a "this" in the same place.
+            Local local = resolveLocal(expr.keyword);
+            if (local != null) expr.upvalue = capture(functionScope, local);
+            expr.receiver = new Expr.This(new Token(TokenType.THIS, "this", null, expr.keyword.line));
+            resolve(expr.receiver);
         }
-        resolveLocal(expr, expr.keyword);
         return null;
     }
 
     @Override
     public Void visitThisExpr(Expr.This expr) {
         if (currentClass == ClassType.NONE) {
-            Lox.error(expr.keyword, "Can't use 'this' outside of a class.");
+            reporter.error(expr.keyword, "Can't use 'this' outside of a class.");
+        }
+        Local local = resolveLocal(expr.keyword);
+        if (local == null) return null;
+        if (isLocal(local)) {
+            expr.slot = local.slot;
+        }
+        else {
+            expr.upvalue = capture(functionScope, local);
         }
-        resolveLocal(expr, expr.keyword);
         return null;
     }
 
@@ -113,27 +214,71 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
-        if(! scopes.isEmpty() && scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-            Lox.error(expr.name, "Can't read local variable in its own initializer.");
+        if(! scopes.isEmpty() && isDeclaredButUndefined(expr.name)) {
+            reporter.error(expr.name, "Can't read local variable in its own initializer.");
+        }
+        Local local = resolveLocal(expr.name);
+        if (local == null) return null;
+        if (isLocal(local)) {
+            expr.slot = local.slot;
+            local.uses.add(expr);
+        }
+        else {
+            expr.upvalue = capture(functionScope, local);
+            expr.captured = true;
         }
-        resolveLocal(expr, expr.name);
         return null;
     }
 
-    private void resolveLocal(Expr expr, Token name) {
+    private boolean isDeclaredButUndefined(Token name) {
+        Local local = scopes.peek().get(name.lexeme());
+        return local != null && !local.defined;
+    }
+
+    // Returns null if the variable is a global.
+    private Local resolveLocal(Token name) {
         for(int i = scopes.size() - 1; i >= 0; i --) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                return;
-            }
+            Local local = scopes.get(i).get(name.lexeme());
+            if (local != null) return local;
+        }
+        return null;
+    }
+
+    // Whether the variable is in the current function's frame rather than an enclosing one's.
+    private boolean isLocal(Local local) {
+        return local.scope >= functionScope.base;
+    }
+
+    // Returns the index of the upvalue through which a function reaches a variable of an enclosing function,
+    // adding it, and whatever the functions in between need to pass it down, the first time it is asked for.
+    private int capture(FunctionScope function, Local local) {
+        Integer index = function.upvalueIndexes.get(local);
+        if (index != null) return index;
+        if (local.scope >= function.enclosing.base) {
+            local.captured = true;
+            function.upvalues.add(1);
+            function.upvalues.add(local.slot);
+        }
+        else {
+            int outer = capture(function.enclosing, local);
+            function.upvalues.add(0);
+            function.upvalues.add(outer);
         }
+        index = function.upvalueIndexes.size();
+        function.upvalueIndexes.put(local, index);
+        return index;
     }
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
+        // Only an outermost block in top-level code has to say how big a frame it needs, and only if it declares
+        // anything. They all run in the same top-level frame, one after another, so each starts from slot 0.
+        boolean outermost = scopes.isEmpty();
         beginScope();
         resolve(stmt.statements);
         endScope();
+        stmt.scoped = outermost && functionScope.frameSize > 0;
+        if (stmt.scoped) stmt.frameSize = functionScope.frameSize;
         return null;
     }
 
@@ -141,29 +286,31 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     public Void visitClassStmt(Stmt.Class stmt) {
         ClassType enclosingClass = currentClass;
         currentClass = ClassType.CLASS;
-        declare(stmt.name);
+        Local local = declare(stmt.name);
+        if (local != null) {
+            local.declaration = stmt;
+            stmt.slot = local.slot;
+        }
         define(stmt.name);
-        if (stmt.superclass != null && stmt.name.lexeme.equals(stmt.superclass.name.lexeme)) {
-            Lox.error(stmt.superclass.name, "A class can't inherit from itself.");
+        if (stmt.superclass != null && stmt.name.lexeme().equals(stmt.superclass.name.lexeme())) {
+            reporter.error(stmt.superclass.name, "A class can't inherit from itself.");
         }
         if (stmt.superclass != null) {
             currentClass = ClassType.SUBCLASS;
             resolve(stmt.superclass);
         }
         if (stmt.superclass != null) {
+            // At the top level this scope is a frame of its own, just for "super".
             beginScope();
-            scopes.peek().put("super", true);
+            stmt.superSlot = defineImplicit("super").slot;
         }
-        beginScope();
-        scopes.peek().put("this", true);
         for (Stmt.Function method : stmt.methods) {
             FunctionType declaration = FunctionType.METHOD;
-            if (method.name.lexeme.equals("init")) {
+            if (method.name.lexeme().equals("init")) {
                 declaration = FunctionType.INITIALIZER;
             }
             resolveFunction(method, declaration);
         }
-        endScope();
         if (stmt.superclass != null) {
             endScope();
         }
@@ -186,11 +333,21 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
 
     private void beginScope() {
-        scopes.push(new HashMap<String, Boolean>());
+        if (scopes.isEmpty()) {
+            // Top-level code outside any scope keeps its variables in globals, so a scope there starts a frame.
+            functionScope.locals = 0;
+            functionScope.frameSize = 0;
+        }
+        scopes.push(new HashMap<String, Local>());
     }
 
+    // Gives the scope's slots back to the frame.
     private void endScope() {
-        scopes.pop();
+        Map<String, Local> scope = scopes.pop();
+        for (Local local : scope.values()) {
+            if (local.captured) local.markCaptured();
+        }
+        functionScope.locals -= scope.size();
     }
 
     @Override
@@ -201,7 +358,11 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        declare(stmt.name);
+        Local local = declare(stmt.name);
+        if (local != null) {
+            local.declaration = stmt;
+            stmt.slot = local.slot;
+        }
         define(stmt.name);
         resolveFunction(stmt, FunctionType.FUNCTION);
         return null;
@@ -210,13 +371,30 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     private void resolveFunction(Stmt.Function function, FunctionType type) {
         FunctionType enclosingFunction = currentFunction;
         currentFunction = type;
+        functionScope = new FunctionScope(functionScope, scopes.size());
         beginScope();
+        if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+            // The receiver takes the first slot of a method's frame, so calling a method needs no extra
+            // environment to hold it.
+            defineImplicit("this");
+        }
         for(Token param : function.params) {
             declare(param);
             define(param);
         }
         resolve(function.body);
+        // Parameters are defined before the body runs, so the ones closures capture are moved into cells as
+        // the call starts.
+        List<Integer> capturedSlots = new ArrayList<>();
+        for (Token param : function.params) {
+            Local local = scopes.peek().get(param.lexeme());
+            if (local.captured) capturedSlots.add(local.slot);
+        }
         endScope();
+        function.frameSize = functionScope.frameSize;
+        function.capturedSlots = capturedSlots.stream().mapToInt(Integer::intValue).toArray();
+        function.upvalues = functionScope.upvalues.stream().mapToInt(Integer::intValue).toArray();
+        functionScope = functionScope.enclosing;
         currentFunction = enclosingFunction;
     }
 
@@ -237,11 +415,11 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitReturnStmt(Stmt.Return stmt) {
         if (currentFunction == FunctionType.NONE) {
-            Lox.error(stmt.keyword, "Can't return from top-level code.");
+            reporter.error(stmt.keyword, "Can't return from top-level code.");
         }
         if (stmt.value != null) {
             if (currentFunction == FunctionType.INITIALIZER) {
-                Lox.error(stmt.keyword, "Can't return a value from a initializer.");
+                reporter.error(stmt.keyword, "Can't return a value from a initializer.");
             }
             resolve(stmt.value);
         }
@@ -250,7 +428,11 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
-        declare(stmt.name);
+        Local local = declare(stmt.name);
+        if (local != null) {
+            local.declaration = stmt;
+            stmt.slot = local.slot;
+        }
         if(stmt.initializer != null) {
             resolve(stmt.initializer);
         }
@@ -258,18 +440,35 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
-    private void declare(Token name) {
-        if (scopes.isEmpty()) return;
-        Map<String, Boolean> scope = scopes.peek();
-        if (scope.containsKey(name.lexeme)) {
-            Lox.error(name, "Already a variable with this name in this scope");
+    // Returns null for a global.
+    private Local declare(Token name) {
+        if (scopes.isEmpty()) return null;
+        Map<String, Local> scope = scopes.peek();
+        if (scope.containsKey(name.lexeme())) {
+            reporter.error(name, "Already a variable with this name in this scope");
         }
-        scope.put(name.lexeme, false);
+        Local local = newLocal();
+        scope.put(name.lexeme(), local);
+        return local;
     }
 
     private void define(Token name) {
         if (scopes.isEmpty()) return;
-        scopes.peek().put(name.lexeme, true);
+        scopes.peek().get(name.lexeme()).defined = true;
+    }
+
+    private Local defineImplicit(String name) {
+        Local local = newLocal();
+        local.defined = true;
+        scopes.peek().put(name, local);
+        return local;
+    }
+
+    // Takes the next free slot of the frame for a variable of the innermost scope.
+    private Local newLocal() {
+        Local local = new Local(functionScope.locals ++, scopes.size() - 1);
+        functionScope.frameSize = Math.max(functionScope.frameSize, functionScope.locals);
+        return local;
     }
 
     @Override
@@ -2,9 +2,18 @@ package com.craftinginterpreters.lox;
 
 public class RuntimeError extends RuntimeException{
     final Token token;
+    final int line;
 
     RuntimeError(Token token, String message) {
         super(message);
         this.token = token;
+        this.line = token.line;
+    }
+
+    // The VM only keeps a line table, so its errors have no token.
+    RuntimeError(int line, String message) {
+        super(message);
+        this.token = null;
+        this.line = line;
     }
 }
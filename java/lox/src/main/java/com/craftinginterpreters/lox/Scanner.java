@@ -1,51 +1,50 @@
 package com.craftinginterpreters.lox;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import static com.craftinginterpreters.lox.TokenType.*;
 
-public class Scanner {
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+public class Scanner implements TokenStream {
+    private final Source source;
+    private final ErrorReporter reporter;
+    // The token the last call to scanToken() produced, if it produced one.
+    private Token scanned;
     private int start = 0;
     private int current = 0;
     private int line = 1;
 
-    private static final Map<String, TokenType> keywords;
-
-    static {
-        keywords = new HashMap<>();
-        keywords.put("and", AND);
-        keywords.put("class", CLASS);
-        keywords.put("else", ELSE);
-        keywords.put("false", FALSE);
-        keywords.put("for", FOR);
-        keywords.put("fun", FUN);
-        keywords.put("if", IF);
-        keywords.put("nil", NIL);
-        keywords.put("or", OR);
-        keywords.put("print", PRINT);
-        keywords.put("return", RETURN);
-        keywords.put("super", SUPER);
-        keywords.put("this", THIS);
-        keywords.put("true", TRUE);
-        keywords.put("var", VAR);
-        keywords.put("while", WHILE);
-    }
     Scanner(String source) {
+        this(Source.of(source), Lox.reporter);
+    }
+
+    Scanner(Source source, ErrorReporter reporter) {
         this.source = source;
+        this.reporter = reporter;
     }
 
     List<Token> scanTokens() {
-        while (! isAtEnd()) {
+        List<Token> tokens = new ArrayList<>();
+        Token token;
+        do {
+            token = next();
+            tokens.add(token);
+        }
+        while (token.type != EOF);
+        return tokens;
+    }
+
+    // Scans just far enough to produce the next token.
+    @Override
+    public Token next() {
+        while (scanned == null) {
+            if (isAtEnd()) return new Token(EOF, "", null, line);
             start = current;
             scanToken();
         }
-        tokens.add(new Token(EOF, "", null, line));
-        return tokens;
+        Token token = scanned;
+        scanned = null;
+        return token;
     }
 
     private boolean isAtEnd() {
@@ -101,7 +100,8 @@ public class Scanner {
                     identifier();
                 }
                 else {
-                    Lox.error(line, "Unexpected character: " + c);
+                    current = source.next(start);
+                    reporter.error(line, "Unexpected character: " + source.text(start, current));
                 }
                 break;
         }
@@ -109,10 +109,51 @@ public class Scanner {
 
     private void identifier() {
         while (isAlphaNumeric(peek())) advance();
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        if (type == null) type = IDENTIFIER;
-        addToken(type);
+        addToken(identifierType());
+    }
+
+    // Recognizes keywords straight from the source characters, the way clox does, so an identifier never has to
+    // become a String to be checked.
+    private TokenType identifierType() {
+        switch (source.charAt(start)) {
+            case 'a': return checkKeyword(1, "nd", AND);
+            case 'c': return checkKeyword(1, "lass", CLASS);
+            case 'e': return checkKeyword(1, "lse", ELSE);
+            case 'f':
+                if (current - start > 1) {
+                    switch (source.charAt(start + 1)) {
+                        case 'a': return checkKeyword(2, "lse", FALSE);
+                        case 'o': return checkKeyword(2, "r", FOR);
+                        case 'u': return checkKeyword(2, "n", FUN);
+                    }
+                }
+                break;
+            case 'i': return checkKeyword(1, "f", IF);
+            case 'n': return checkKeyword(1, "il", NIL);
+            case 'o': return checkKeyword(1, "r", OR);
+            case 'p': return checkKeyword(1, "rint", PRINT);
+            case 'r': return checkKeyword(1, "eturn", RETURN);
+            case 's': return checkKeyword(1, "uper", SUPER);
+            case 't':
+                if (current - start > 1) {
+                    switch (source.charAt(start + 1)) {
+                        case 'h': return checkKeyword(2, "is", THIS);
+                        case 'r': return checkKeyword(2, "ue", TRUE);
+                    }
+                }
+                break;
+            case 'v': return checkKeyword(1, "ar", VAR);
+            case 'w': return checkKeyword(1, "hile", WHILE);
+        }
+        return IDENTIFIER;
+    }
+
+    private TokenType checkKeyword(int offset, String rest, TokenType type) {
+        if (current - start != offset + rest.length()) return IDENTIFIER;
+        for (int i = 0; i < rest.length(); i ++) {
+            if (source.charAt(start + offset + i) != rest.charAt(i)) return IDENTIFIER;
+        }
+        return type;
     }
 
     private boolean isAlpha(char c) {
@@ -135,9 +176,38 @@ public class Scanner {
             advance();
             while (isDigit(peek())) advance();
         }
-        addToken(NUMBER, Double.parseDouble(source.substring(start, current)));
+        addToken(NUMBER, numberValue());
+    }
+
+    // A literal with at most 15 significant digits and 22 decimal places is an integer that a double holds
+    // exactly, divided by a power of ten that a double holds exactly, so the one rounding in the division gives
+    // the same result Double.parseDouble() would. Anything longer takes the slow path through a String.
+    private double numberValue() {
+        long digits = 0;
+        int significant = 0;
+        int decimals = 0;
+        boolean fraction = false;
+        for (int i = start; i < current; i ++) {
+            char c = source.charAt(i);
+            if (c == '.') {
+                fraction = true;
+                continue;
+            }
+            if (fraction) decimals ++;
+            if (digits != 0 || c != '0') significant ++;
+            digits = digits * 10 + (c - '0');
+        }
+        if (significant > 15 || decimals >= POWERS_OF_TEN.length) {
+            return Double.parseDouble(source.text(start, current));
+        }
+        return digits / POWERS_OF_TEN[decimals];
     }
 
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
     private char peekNext() {
         if(current + 1 >= source.length()) return '\0';
         return source.charAt(current + 1);
@@ -149,14 +219,14 @@ public class Scanner {
             advance();
         }
         if(isAtEnd()) {
-            Lox.error(line, "Unterminated string.");
+            reporter.error(line, "Unterminated string.");
             return;
         }
         //The closing ".
         advance();
 
         //Trim the surrounding quotes.
-        String value = source.substring(start + 1, current - 1);
+        String value = source.text(start + 1, current - 1);
         addToken(STRING, value);
     }
 
@@ -176,7 +246,6 @@ public class Scanner {
     }
 
     private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        scanned = new Token(type, source, start, current - start, literal, line);
     }
 }
@@ -0,0 +1,44 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// The hidden class of a LoxInstance: which fields it has and the index of each in the instance's field array.
+// Instances of a class start out with the class's root shape and move along transitions as fields are added, so
+// instances that got the same fields in the same order share a shape. A shape belongs to exactly one class,
+// which lets the inline caches in PropertyCache guard on the shape alone.
+final class Shape {
+    final LoxClass klass;
+    private final Map<String, Integer> slots;
+    private final Map<String, Shape> transitions = new HashMap<>();
+
+    Shape(LoxClass klass) {
+        this(klass, new HashMap<>());
+    }
+
+    private Shape(LoxClass klass, Map<String, Integer> slots) {
+        this.klass = klass;
+        this.slots = slots;
+    }
+
+    int size() {
+        return slots.size();
+    }
+
+    // Returns -1 if instances of this shape have no such field.
+    int slotOf(String name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    Shape withField(String name) {
+        Shape shape = transitions.get(name);
+        if (shape == null) {
+            Map<String, Integer> fields = new HashMap<>(slots);
+            fields.put(name, slots.size());
+            shape = new Shape(klass, fields);
+            transitions.put(name, shape);
+        }
+        return shape;
+    }
+}
@@ -0,0 +1,124 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+// The text of a script as the Scanner reads it. Tokens keep a reference to their source and copy their lexeme
+// out of it only when something asks for it, so scanning does not copy the input.
+abstract class Source {
+    abstract int length();
+
+    abstract char charAt(int index);
+
+    // Copies out the text from start up to end.
+    abstract String text(int start, int end);
+
+    // The index just past the character starting at index.
+    abstract int next(int index);
+
+    // A hex SHA-256 of the UTF-8 encoding of the source, used to key the AstCache.
+    abstract String hash();
+
+    static Source of(String text) {
+        return new StringSource(text);
+    }
+
+    // Maps a UTF-8 file into memory instead of reading it onto the heap.
+    static Source map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new Utf8Source(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    private static String sha256(ByteBuffer bytes) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(bytes);
+            return HexFormat.of().formatHex(digest.digest());
+        }
+        catch (NoSuchAlgorithmException error) {
+            throw new IllegalStateException(error);
+        }
+    }
+
+    private static final class StringSource extends Source {
+        private final String text;
+
+        StringSource(String text) {
+            this.text = text;
+        }
+
+        @Override
+        int length() {
+            return text.length();
+        }
+
+        @Override
+        char charAt(int index) {
+            return text.charAt(index);
+        }
+
+        @Override
+        String text(int start, int end) {
+            return text.substring(start, end);
+        }
+
+        @Override
+        int next(int index) {
+            return index + 1;
+        }
+
+        @Override
+        String hash() {
+            return sha256(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    // Indexed by byte rather than by character. Everything the Scanner looks at outside a string literal or a
+    // comment is ASCII, which is a single byte in UTF-8, and the bytes of any other character are all outside
+    // the ASCII range, so scanning bytes finds the same tokens. Text is decoded when it is copied out.
+    private static final class Utf8Source extends Source {
+        private final ByteBuffer bytes;
+
+        Utf8Source(ByteBuffer bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        int length() {
+            return bytes.limit();
+        }
+
+        @Override
+        char charAt(int index) {
+            return (char) (bytes.get(index) & 0xff);
+        }
+
+        @Override
+        String text(int start, int end) {
+            byte[] text = new byte[end - start];
+            bytes.get(start, text);
+            return new String(text, StandardCharsets.UTF_8);
+        }
+
+        // Skips the continuation bytes, 10xxxxxx, of a multi-byte character.
+        @Override
+        int next(int index) {
+            index ++;
+            while (index < bytes.limit() && (bytes.get(index) & 0xc0) == 0x80) index ++;
+            return index;
+        }
+
+        @Override
+        String hash() {
+            return sha256(bytes.duplicate());
+        }
+    }
+}
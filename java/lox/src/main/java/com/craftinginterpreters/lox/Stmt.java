@@ -22,6 +22,8 @@ abstract class Stmt {
         }
 
         final List<Stmt> statements;
+        boolean scoped = true;
+        int frameSize;
 
         @Override
         <R> R accept(Visitor<R> visitor) {
@@ -39,6 +41,9 @@ abstract class Stmt {
         final Token name;
         final Expr.Variable superclass;
         final List<Stmt.Function> methods;
+        int slot = -1;
+        int superSlot;
+        boolean captured;
 
         @Override
         <R> R accept(Visitor<R> visitor) {
@@ -69,6 +74,15 @@ abstract class Stmt {
         final Token name;
         final List<Token> params;
         final List<Stmt> body;
+        int slot = -1;
+        int frameSize;
+        int[] upvalues;
+        int[] capturedSlots;
+        boolean captured;
+        int hotness;
+        boolean deoptimized;
+        boolean uncompilable;
+        CompiledFunction compiled;
 
         @Override
         <R> R accept(Visitor<R> visitor) {
@@ -129,6 +143,8 @@ abstract class Stmt {
 
         final Token name;
         final Expr initializer;
+        int slot = -1;
+        boolean captured;
 
         @Override
         <R> R accept(Visitor<R> visitor) {
@@ -144,6 +160,7 @@ abstract class Stmt {
 
         final Expr condition;
         final Stmt body;
+        int[] invariants;
 
         @Override
         <R> R accept(Visitor<R> visitor) {
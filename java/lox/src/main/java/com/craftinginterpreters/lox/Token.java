@@ -2,18 +2,36 @@ package com.craftinginterpreters.lox;
 
 public class Token {
     final TokenType type;
-    final String lexeme;
     final Object literal;
     final int line;
+    // The lexeme is a range of the source, copied out and interned the first time it is asked for.
+    private final Source source;
+    final int offset;
+    final int length;
+    private String lexeme;
 
     Token(TokenType type, String lexeme, Object literal, int line) {
-        this.type = type;
+        this(type, null, 0, lexeme.length(), literal, line);
         this.lexeme = lexeme;
+    }
+
+    Token(TokenType type, Source source, int offset, int length, Object literal, int line) {
+        this.type = type;
+        this.source = source;
+        this.offset = offset;
+        this.length = length;
         this.literal = literal;
         this.line = line;
     }
 
+    String lexeme() {
+        if (lexeme == null) {
+            lexeme = source.text(offset, offset + length).intern();
+        }
+        return lexeme;
+    }
+
     public String toString() {
-        return type + " " + lexeme + " " + literal;
+        return type + " " + lexeme() + " " + literal;
     }
 }
@@ -0,0 +1,22 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+// Where the Parser gets its tokens, one at a time as it needs them. Once the tokens run out, next() keeps
+// returning the EOF token.
+interface TokenStream {
+    Token next();
+
+    static TokenStream of(List<Token> tokens) {
+        return new TokenStream() {
+            private int current = 0;
+
+            @Override
+            public Token next() {
+                Token token = tokens.get(current);
+                if (current < tokens.size() - 1) current ++;
+                return token;
+            }
+        };
+    }
+}
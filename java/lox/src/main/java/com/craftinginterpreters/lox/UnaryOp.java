@@ -0,0 +1,86 @@
+package com.craftinginterpreters.lox;
+
+// The operation behind an Expr.Unary when the interpreter is specializing. See BinaryOp.
+abstract class UnaryOp {
+    static final UnaryOp UNINITIALIZED = new UnaryOp() {
+        @Override
+        Object apply(Expr.Unary expr, Object right) {
+            UnaryOp op = specialize(expr.operator.type, right);
+            expr.op = op;
+            return op.apply(expr, right);
+        }
+    };
+
+    static final UnaryOp GENERIC = new UnaryOp() {
+        @Override
+        Object apply(Expr.Unary expr, Object right) {
+            return Interpreter.unary(expr.operator, right);
+        }
+    };
+
+    Object execute(Interpreter interpreter, Expr.Unary expr) {
+        return apply(expr, interpreter.evaluate(expr.right));
+    }
+
+    double executeNumber(Interpreter interpreter, Expr.Unary expr) {
+        return Interpreter.expectNumber(execute(interpreter, expr));
+    }
+
+    boolean producesNumber() {
+        return false;
+    }
+
+    abstract Object apply(Expr.Unary expr, Object right);
+
+    private static UnaryOp specialize(TokenType operator, Object right) {
+        if (operator == TokenType.BANG) return NOT;
+        if (operator == TokenType.MINUS && right instanceof Double) return NUMBER_NEGATE;
+        return GENERIC;
+    }
+
+    private static final UnaryOp NOT = new UnaryOp() {
+        @Override
+        Object apply(Expr.Unary expr, Object right) {
+            return !Interpreter.isTruthy(right);
+        }
+    };
+
+    private static final UnaryOp NUMBER_NEGATE = new UnaryOp() {
+        @Override
+        Object execute(Interpreter interpreter, Expr.Unary expr) {
+            try {
+                return executeNumber(interpreter, expr);
+            }
+            catch (UnexpectedValue unexpected) {
+                return unexpected.value;
+            }
+        }
+
+        @Override
+        double executeNumber(Interpreter interpreter, Expr.Unary expr) {
+            double right;
+            try {
+                right = interpreter.evaluateNumber(expr.right);
+            }
+            catch (UnexpectedValue unexpected) {
+                expr.op = GENERIC;
+                return Interpreter.expectNumber(GENERIC.apply(expr, unexpected.value));
+            }
+            return - right;
+        }
+
+        @Override
+        boolean producesNumber() {
+            return true;
+        }
+
+        @Override
+        Object apply(Expr.Unary expr, Object right) {
+            if (right instanceof Double) {
+                return - (double) right;
+            }
+            expr.op = GENERIC;
+            return GENERIC.apply(expr, right);
+        }
+    };
+}
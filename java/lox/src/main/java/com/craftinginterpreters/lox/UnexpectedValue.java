@@ -0,0 +1,14 @@
+package com.craftinginterpreters.lox;
+
+// Thrown by the unboxed evaluation paths when an expression that was expected to produce a number produced
+// something else. The value has already been computed, so the catcher carries on with it instead of
+// evaluating the expression again.
+@SuppressWarnings("serial")
+class UnexpectedValue extends RuntimeException {
+    final Object value;
+
+    UnexpectedValue(Object value) {
+        super(null, null, false, false);
+        this.value = value;
+    }
+}
@@ -0,0 +1,592 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.craftinginterpreters.lox.OpCode.*;
+
+// A stack-based virtual machine that runs the bytecode produced by the Compiler.
+public class VM {
+    private static final int FRAMES_MAX = 1 << 16;
+
+    private static class CallFrame {
+        ObjClosure closure;
+        int ip;
+        // Index of the frame's first slot on the value stack.
+        int slots;
+    }
+
+    private Object[] stack = new Object[256];
+    private int stackTop = 0;
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+    private ObjUpvalue openUpvalues = null;
+
+    // The Compiler turns every global name into a slot, so globals are array accesses at runtime.
+    private static final Object UNDEFINED = new Object();
+    private final Map<String, Integer> globalSlots = new HashMap<>();
+    private String[] globalNames = new String[64];
+    private Object[] globalValues = new Object[64];
+
+    private final OutputSink out;
+    private final ErrorReporter errors;
+
+    VM() {
+        this(System.out::println, Lox.reporter);
+    }
+
+    VM(OutputSink out, ErrorReporter errors) {
+        this.out = out;
+        this.errors = errors;
+        for (int i = 0; i < frames.length; i ++) {
+            frames[i] = new CallFrame();
+        }
+        globalValues[globalSlot("clock")] = new ObjNative(0, arguments -> (double) System.currentTimeMillis() / 1000.0);
+    }
+
+    int globalSlot(String name) {
+        Integer slot = globalSlots.get(name);
+        if (slot != null) return slot;
+        int index = globalSlots.size();
+        if (index == globalValues.length) {
+            globalNames = Arrays.copyOf(globalNames, index * 2);
+            globalValues = Arrays.copyOf(globalValues, index * 2);
+        }
+        globalNames[index] = name;
+        globalValues[index] = UNDEFINED;
+        globalSlots.put(name, index);
+        return index;
+    }
+
+    void interpret(ObjFunction script) {
+        try {
+            ObjClosure closure = new ObjClosure(script);
+            push(closure);
+            call(closure, 0);
+            run();
+        }
+        catch (RuntimeError error) {
+            errors.runtimeError(error);
+            resetStack();
+        }
+    }
+
+    private void resetStack() {
+        Arrays.fill(stack, 0, stackTop, null);
+        stackTop = 0;
+        frameCount = 0;
+        openUpvalues = null;
+    }
+
+    // The stack and its top are kept in locals while running, and written back to the fields before anything that
+    // may use them: calls, upvalue handling and errors.
+    private void run() {
+        CallFrame frame = frames[frameCount - 1];
+        byte[] code = frame.closure.function.chunk.code;
+        Object[] constants = frame.closure.function.chunk.constants;
+        int ip = frame.ip;
+        int slots = frame.slots;
+        Object[] stack = this.stack;
+        int sp = stackTop;
+
+        for (;;) {
+            byte instruction = code[ip ++];
+            switch (instruction) {
+                case OP_CONSTANT: {
+                    stack[sp ++] = constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    break;
+                }
+                case OP_NIL: stack[sp ++] = null; break;
+                case OP_TRUE: stack[sp ++] = true; break;
+                case OP_FALSE: stack[sp ++] = false; break;
+                case OP_POP: sp --; break;
+                case OP_GET_LOCAL: {
+                    stack[sp] = stack[slots + (code[ip ++] & 0xff)];
+                    sp ++;
+                    break;
+                }
+                case OP_SET_LOCAL: {
+                    stack[slots + (code[ip ++] & 0xff)] = stack[sp - 1];
+                    break;
+                }
+                case OP_GET_GLOBAL: {
+                    int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    Object value = globalValues[slot];
+                    if (value == UNDEFINED) {
+                        stackTop = sp;
+                        throw error(frame, ip, "Undefined variable'" + globalNames[slot] + "'.");
+                    }
+                    stack[sp ++] = value;
+                    break;
+                }
+                case OP_DEFINE_GLOBAL: {
+                    int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    globalValues[slot] = stack[-- sp];
+                    stack[sp] = null;
+                    break;
+                }
+                case OP_SET_GLOBAL: {
+                    int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    if (globalValues[slot] == UNDEFINED) {
+                        stackTop = sp;
+                        throw error(frame, ip, "Undefined variable '" + globalNames[slot] + "'.");
+                    }
+                    globalValues[slot] = stack[sp - 1];
+                    break;
+                }
+                case OP_GET_UPVALUE: {
+                    ObjUpvalue upvalue = frame.closure.upvalues[code[ip ++] & 0xff];
+                    stack[sp] = upvalue.closed ? upvalue.value : stack[upvalue.location];
+                    sp ++;
+                    break;
+                }
+                case OP_SET_UPVALUE: {
+                    ObjUpvalue upvalue = frame.closure.upvalues[code[ip ++] & 0xff];
+                    if (upvalue.closed) {
+                        upvalue.value = stack[sp - 1];
+                    }
+                    else {
+                        stack[upvalue.location] = stack[sp - 1];
+                    }
+                    break;
+                }
+                case OP_GET_PROPERTY: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    if (!(stack[sp - 1] instanceof ObjInstance)) {
+                        stackTop = sp;
+                        throw error(frame, ip, "Only instances have properties");
+                    }
+                    ObjInstance instance = (ObjInstance) stack[sp - 1];
+                    Object value = instance.fields.get(name);
+                    if (value != null || instance.fields.containsKey(name)) {
+                        stack[sp - 1] = value;
+                        break;
+                    }
+                    frame.ip = ip;
+                    stackTop = sp;
+                    bindMethod(instance.klass, name);
+                    break;
+                }
+                case OP_SET_PROPERTY: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    if (!(stack[sp - 2] instanceof ObjInstance)) {
+                        stackTop = sp;
+                        throw error(frame, ip, "Only instance have fields.");
+                    }
+                    ObjInstance instance = (ObjInstance) stack[sp - 2];
+                    Object value = stack[-- sp];
+                    stack[sp] = null;
+                    instance.fields.put(name, value);
+                    stack[sp - 1] = value;
+                    break;
+                }
+                case OP_GET_SUPER: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    ObjClass superclass = (ObjClass) stack[-- sp];
+                    stack[sp] = null;
+                    frame.ip = ip;
+                    stackTop = sp;
+                    bindMethod(superclass, name);
+                    break;
+                }
+                case OP_EQUAL: {
+                    Object b = stack[-- sp];
+                    stack[sp - 1] = Interpreter.isEqual(stack[sp - 1], b);
+                    break;
+                }
+                case OP_NOT_EQUAL: {
+                    Object b = stack[-- sp];
+                    stack[sp - 1] = !Interpreter.isEqual(stack[sp - 1], b);
+                    break;
+                }
+                case OP_GREATER: {
+                    Object b = stack[-- sp];
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double) || !(b instanceof Double)) throw numberOperandsError(frame, ip, sp);
+                    stack[sp - 1] = (double) a > (double) b;
+                    break;
+                }
+                case OP_GREATER_EQUAL: {
+                    Object b = stack[-- sp];
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double) || !(b instanceof Double)) throw numberOperandsError(frame, ip, sp);
+                    stack[sp - 1] = (double) a >= (double) b;
+                    break;
+                }
+                case OP_LESS: {
+                    Object b = stack[-- sp];
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double) || !(b instanceof Double)) throw numberOperandsError(frame, ip, sp);
+                    stack[sp - 1] = (double) a < (double) b;
+                    break;
+                }
+                case OP_LESS_EQUAL: {
+                    Object b = stack[-- sp];
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double) || !(b instanceof Double)) throw numberOperandsError(frame, ip, sp);
+                    stack[sp - 1] = (double) a <= (double) b;
+                    break;
+                }
+                case OP_ADD: {
+                    Object b = stack[sp - 1];
+                    Object a = stack[sp - 2];
+                    Object result;
+                    if (a instanceof Double && b instanceof Double) {
+                        result = (double) a + (double) b;
+                    }
+                    else if (a instanceof String && b instanceof String) {
+                        result = (String) a + (String) b;
+                    }
+                    else if (a instanceof String || b instanceof String) {
+                        result = a.toString() + b.toString();
+                    }
+                    else {
+                        stackTop = sp;
+                        throw error(frame, ip, "Operands must be two numbers or two strings");
+                    }
+                    stack[-- sp - 1] = result;
+                    break;
+                }
+                case OP_SUBTRACT: {
+                    Object b = stack[-- sp];
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double) || !(b instanceof Double)) throw numberOperandsError(frame, ip, sp);
+                    stack[sp - 1] = (double) a - (double) b;
+                    break;
+                }
+                case OP_MULTIPLY: {
+                    Object b = stack[-- sp];
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double) || !(b instanceof Double)) throw numberOperandsError(frame, ip, sp);
+                    stack[sp - 1] = (double) a * (double) b;
+                    break;
+                }
+                case OP_DIVIDE: {
+                    Object b = stack[-- sp];
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double) || !(b instanceof Double)) throw numberOperandsError(frame, ip, sp);
+                    if ((double) b == 0) {
+                        stackTop = sp;
+                        throw error(frame, ip, "denominator can't be zero");
+                    }
+                    stack[sp - 1] = (double) a / (double) b;
+                    break;
+                }
+                case OP_NOT: {
+                    stack[sp - 1] = !Interpreter.isTruthy(stack[sp - 1]);
+                    break;
+                }
+                case OP_NEGATE: {
+                    if (!(stack[sp - 1] instanceof Double)) {
+                        stackTop = sp;
+                        throw error(frame, ip, "Operand must be number");
+                    }
+                    stack[sp - 1] = - (double) stack[sp - 1];
+                    break;
+                }
+                case OP_PRINT: {
+                    out.println(Interpreter.stringify(stack[-- sp]));
+                    stack[sp] = null;
+                    break;
+                }
+                case OP_JUMP: {
+                    int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2 + offset;
+                    break;
+                }
+                case OP_JUMP_IF_FALSE: {
+                    int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    if (!Interpreter.isTruthy(stack[sp - 1])) ip += offset;
+                    break;
+                }
+                case OP_POP_JUMP_IF_FALSE: {
+                    int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    if (!Interpreter.isTruthy(stack[-- sp])) ip += offset;
+                    break;
+                }
+                case OP_STORE_LOCAL: {
+                    stack[slots + (code[ip ++] & 0xff)] = stack[-- sp];
+                    break;
+                }
+                case OP_LOOP: {
+                    int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2 - offset;
+                    break;
+                }
+                case OP_CALL: {
+                    int argCount = code[ip ++] & 0xff;
+                    frame.ip = ip;
+                    stackTop = sp;
+                    callValue(stack[sp - argCount - 1], argCount);
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    slots = frame.slots;
+                    stack = this.stack;
+                    sp = stackTop;
+                    break;
+                }
+                case OP_INVOKE: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    int argCount = code[ip + 2] & 0xff;
+                    ip += 3;
+                    frame.ip = ip;
+                    stackTop = sp;
+                    invoke(name, argCount);
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    slots = frame.slots;
+                    stack = this.stack;
+                    sp = stackTop;
+                    break;
+                }
+                case OP_SUPER_INVOKE: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    int argCount = code[ip + 2] & 0xff;
+                    ip += 3;
+                    ObjClass superclass = (ObjClass) stack[-- sp];
+                    stack[sp] = null;
+                    frame.ip = ip;
+                    stackTop = sp;
+                    invokeFromClass(superclass, name, argCount);
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    slots = frame.slots;
+                    stack = this.stack;
+                    sp = stackTop;
+                    break;
+                }
+                case OP_CLOSURE: {
+                    ObjFunction function = (ObjFunction) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    ObjClosure closure = new ObjClosure(function);
+                    stack[sp ++] = closure;
+                    for (int i = 0; i < closure.upvalues.length; i ++) {
+                        boolean isLocal = code[ip ++] == 1;
+                        int index = code[ip ++] & 0xff;
+                        if (isLocal) {
+                            closure.upvalues[i] = captureUpvalue(frame.slots + index);
+                        }
+                        else {
+                            closure.upvalues[i] = frame.closure.upvalues[index];
+                        }
+                    }
+                    break;
+                }
+                case OP_CLOSE_UPVALUE: {
+                    closeUpvalues(sp - 1);
+                    stack[-- sp] = null;
+                    break;
+                }
+                case OP_RETURN: {
+                    Object result = stack[-- sp];
+                    closeUpvalues(frame.slots);
+                    frameCount --;
+                    Arrays.fill(stack, frame.slots, sp + 1, null);
+                    sp = frame.slots;
+                    if (frameCount == 0) {
+                        stackTop = sp;
+                        return;
+                    }
+                    stack[sp ++] = result;
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    slots = frame.slots;
+                    break;
+                }
+                case OP_CLASS: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    stack[sp ++] = new ObjClass(name);
+                    break;
+                }
+                case OP_INHERIT: {
+                    if (!(stack[sp - 2] instanceof ObjClass)) {
+                        stackTop = sp;
+                        throw error(frame, ip, "Superclass must be a class.");
+                    }
+                    ObjClass superclass = (ObjClass) stack[sp - 2];
+                    ObjClass subclass = (ObjClass) stack[-- sp];
+                    stack[sp] = null;
+                    // Classes can't change once declared, so copying the methods down is the same as looking
+                    // them up through the superclass chain at runtime.
+                    subclass.methods.putAll(superclass.methods);
+                    subclass.initializer = superclass.initializer;
+                    break;
+                }
+                case OP_METHOD: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    ObjClosure method = (ObjClosure) stack[-- sp];
+                    stack[sp] = null;
+                    ObjClass klass = (ObjClass) stack[sp - 1];
+                    klass.methods.put(name, method);
+                    if (name.equals("init")) klass.initializer = method;
+                    break;
+                }
+                default:
+                    stackTop = sp;
+                    throw error(frame, ip, "Unknown opcode " + instruction);
+            }
+        }
+    }
+
+    private void callValue(Object callee, int argCount) {
+        if (callee instanceof ObjClosure) {
+            call((ObjClosure) callee, argCount);
+            return;
+        }
+        if (callee instanceof ObjBoundMethod) {
+            ObjBoundMethod bound = (ObjBoundMethod) callee;
+            stack[stackTop - argCount - 1] = bound.receiver;
+            call(bound.method, argCount);
+            return;
+        }
+        if (callee instanceof ObjClass) {
+            ObjClass klass = (ObjClass) callee;
+            stack[stackTop - argCount - 1] = new ObjInstance(klass);
+            if (klass.initializer != null) {
+                call(klass.initializer, argCount);
+            }
+            else if (argCount != 0) {
+                throw error("Expected 0 arguments but got " + argCount + ".");
+            }
+            return;
+        }
+        if (callee instanceof ObjNative) {
+            ObjNative function = (ObjNative) callee;
+            if (argCount != function.arity) {
+                throw error("Expected " + function.arity + " arguments but got " + argCount + ".");
+            }
+            Object[] arguments = Arrays.copyOfRange(stack, stackTop - argCount, stackTop);
+            Object result = function.function.call(arguments);
+            Arrays.fill(stack, stackTop - argCount - 1, stackTop, null);
+            stackTop -= argCount + 1;
+            push(result);
+            return;
+        }
+        throw error("Can only call functions and classes");
+    }
+
+    private void call(ObjClosure closure, int argCount) {
+        if (argCount != closure.function.arity) {
+            throw error("Expected " + closure.function.arity + " arguments but got " + argCount + ".");
+        }
+        if (frameCount == frames.length) {
+            if (frameCount == FRAMES_MAX) {
+                throw error("Stack overflow.");
+            }
+            frames = Arrays.copyOf(frames, frameCount * 2);
+            for (int i = frameCount; i < frames.length; i ++) {
+                frames[i] = new CallFrame();
+            }
+        }
+        CallFrame frame = frames[frameCount ++];
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.slots = stackTop - argCount - 1;
+        // The Compiler worked out how much stack the function can use, so run() never has to check for room.
+        if (frame.slots + closure.function.maxStack > stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(stack.length * 2, frame.slots + closure.function.maxStack));
+        }
+    }
+
+    private void invoke(String name, int argCount) {
+        Object receiver = stack[stackTop - argCount - 1];
+        if (!(receiver instanceof ObjInstance)) {
+            throw error("Only instances have properties");
+        }
+        ObjInstance instance = (ObjInstance) receiver;
+        Object value = instance.fields.get(name);
+        if (value != null || instance.fields.containsKey(name)) {
+            stack[stackTop - argCount - 1] = value;
+            callValue(value, argCount);
+            return;
+        }
+        invokeFromClass(instance.klass, name, argCount);
+    }
+
+    private void invokeFromClass(ObjClass klass, String name, int argCount) {
+        ObjClosure method = klass.methods.get(name);
+        if (method == null) {
+            throw error("Undefined property '" + name + "'.");
+        }
+        call(method, argCount);
+    }
+
+    private void bindMethod(ObjClass klass, String name) {
+        ObjClosure method = klass.methods.get(name);
+        if (method == null) {
+            throw error("Undefined property '" + name + "'.");
+        }
+        stack[stackTop - 1] = new ObjBoundMethod(stack[stackTop - 1], method);
+    }
+
+    private ObjUpvalue captureUpvalue(int location) {
+        ObjUpvalue previous = null;
+        ObjUpvalue upvalue = openUpvalues;
+        while (upvalue != null && upvalue.location > location) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+        if (upvalue != null && upvalue.location == location) {
+            return upvalue;
+        }
+        ObjUpvalue created = new ObjUpvalue(location);
+        created.next = upvalue;
+        if (previous == null) {
+            openUpvalues = created;
+        }
+        else {
+            previous.next = created;
+        }
+        return created;
+    }
+
+    private void closeUpvalues(int last) {
+        while (openUpvalues != null && openUpvalues.location >= last) {
+            ObjUpvalue upvalue = openUpvalues;
+            upvalue.value = stack[upvalue.location];
+            upvalue.closed = true;
+            openUpvalues = upvalue.next;
+        }
+    }
+
+    private RuntimeError numberOperandsError(CallFrame frame, int ip, int sp) {
+        stackTop = sp + 1;
+        return error(frame, ip, "Operands must be numbers.");
+    }
+
+    private void push(Object value) {
+        if (stackTop == stack.length) {
+            stack = Arrays.copyOf(stack, stackTop * 2);
+        }
+        stack[stackTop ++] = value;
+    }
+
+    // For errors raised outside run(), which saves the instruction pointer into the frame before calling out.
+    private RuntimeError error(String message) {
+        return error(frames[frameCount - 1], frames[frameCount - 1].ip, message);
+    }
+
+    private RuntimeError error(CallFrame frame, int ip, String message) {
+        return new RuntimeError(frame.closure.function.chunk.lines[ip - 1], message);
+    }
+}
@@ -13,35 +13,38 @@ public class GenerateAst {
         }
         String outputDir = args[0];
         defineAst(outputDir, "Expr", Arrays.asList(
-                "Assign     : Token name, Expr value",
-                "Binary     : Expr left, Token operator, Expr right",
-                "Call       : Expr callee, Token paren, List<Expr> arguments",
-                "Get        : Expr object, Token name",
+                "Assign     : Token name, Expr value | int slot = -1, int upvalue = -1, boolean captured",
+                "Binary     : Expr left, Token operator, Expr right | BinaryOp op = BinaryOp.UNINITIALIZED",
+                "Call       : Expr callee, Token paren, List<Expr> arguments | Linker.CallSite site",
+                "Get        : Expr object, Token name | PropertyCache cache = new PropertyCache(), Linker.GetSite site",
                 "Grouping   : Expr expression",
+                "Inline     : Expr.Call call, int base, List<Stmt> body | Stmt.Function declaration",
+                "Invariant  : Expr expression, int slot",
                 "Literal    : Object value",
                 "Logic      : Expr left, Token operator, Expr right",
-                "Set        : Expr object, Token name, Expr value",
-                "Super      : Token keyword, Token method",
-                "This       : Token keyword",
-                "Unary      : Token operator, Expr right",
-                "Variable   : Token name"
+                "Set        : Expr object, Token name, Expr value | PropertyCache cache = new PropertyCache(), Linker.SetSite site",
+                "Super      : Token keyword, Token method | int upvalue = -1, Expr.This receiver",
+                "This       : Token keyword | int slot = -1, int upvalue = -1",
+                "Unary      : Token operator, Expr right | UnaryOp op = UnaryOp.UNINITIALIZED",
+                "Variable   : Token name | int slot = -1, int upvalue = -1, boolean captured"
         ));
 
         defineAst(outputDir, "Stmt", Arrays.asList(
-                "Block      : List<Stmt> statements",
-                "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods",
+                "Block      : List<Stmt> statements | boolean scoped = true, int frameSize",
+                "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods | int slot = -1, int superSlot, boolean captured",
                 "Expression : Expr expression",
-                "Function   : Token name, List<Token> params, List<Stmt> body",
+                "Function   : Token name, List<Token> params, List<Stmt> body | int slot = -1, int frameSize, int[] upvalues, int[] capturedSlots, boolean captured, int hotness, boolean deoptimized, boolean uncompilable, CompiledFunction compiled",
                 "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
                 "Print      : Expr expression",
                 "Return     : Token keyword, Expr value",
-                "Var        : Token name, Expr initializer",
-                "While      : Expr condition, Stmt body"
+                "Var        : Token name, Expr initializer | int slot = -1, boolean captured",
+                "While      : Expr condition, Stmt body | int[] invariants"
         ));
 
     }
 
-    private static void defineType(PrintWriter writer, String baseName, String className, String fieldList) {
+    // Fields after '|' are not constructor parameters; they are filled in later, e.g. by the Resolver.
+    private static void defineType(PrintWriter writer, String baseName, String className, String fieldList, String mutableFieldList) {
         writer.println();
         writer.println("    static class " + className + " extends " + baseName + " {");
 
@@ -62,6 +65,11 @@ public class GenerateAst {
             field = field.trim();
             writer.println("        final " + field + ";");
         }
+        if (mutableFieldList != null) {
+            for (String field : mutableFieldList.split(", ")) {
+                writer.println("        " + field.trim() + ";");
+            }
+        }
 
         // Visitor pattern
         writer.println();
@@ -97,8 +105,10 @@ public class GenerateAst {
         // The AST classes
         for(String type : types) {
             String className = type.split(":")[0].trim();
-            String fields = type.split(":")[1].trim();
-            defineType(writer, baseName, className, fields);
+            String[] fieldLists = type.split(":")[1].split("\\|");
+            String fields = fieldLists[0].trim();
+            String mutableFields = fieldLists.length > 1 ? fieldLists[1].trim() : null;
+            defineType(writer, baseName, className, fields, mutableFields);
         }
         // The base accept() method
         writer.println();
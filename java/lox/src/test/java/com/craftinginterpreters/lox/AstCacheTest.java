@@ -0,0 +1,77 @@
+package com.craftinginterpreters.lox;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class AstCacheTest {
+    private static final String HASH = "entry";
+    // Everything in an entry before the tree itself: the magic number and the version.
+    private static final int HEADER = 8;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void storedTreeRunsTheSame() {
+        AstCache cache = new AstCache(directory);
+        cache.store(HASH, compile("var a = 1; { var b = a + 1; print b; }"));
+        List<Stmt> cached = cache.load(HASH);
+        assertNotNull(cached);
+
+        List<String> output = new ArrayList<>();
+        new Interpreter(output::add, ErrorReporter.collecting()).interpret(cached);
+        assertEquals(Arrays.asList("2"), output);
+    }
+
+    @Test
+    void negativeCountIsAMiss() throws IOException {
+        assertNull(corrupted(0xff, 0xff, 0xff, 0xff, 0x0f).load(HASH));
+    }
+
+    @Test
+    void countPastTheEndIsAMiss() throws IOException {
+        assertNull(corrupted(0xff, 0xff, 0xff, 0xff, 0x07).load(HASH));
+    }
+
+    @Test
+    void truncatedEntryIsAMiss() throws IOException {
+        AstCache cache = new AstCache(directory);
+        cache.store(HASH, compile("print 1 + 2;"));
+        Path file = directory.resolve(HASH);
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 1));
+        assertNull(cache.load(HASH));
+    }
+
+    // A well-formed entry whose tree is replaced by the given bytes.
+    private AstCache corrupted(int... tree) throws IOException {
+        AstCache cache = new AstCache(directory);
+        cache.store(HASH, compile("print 1;"));
+        Path file = directory.resolve(HASH);
+        byte[] bytes = Arrays.copyOf(Files.readAllBytes(file), HEADER + tree.length);
+        for (int i = 0; i < tree.length; i ++) {
+            bytes[HEADER + i] = (byte) tree[i];
+        }
+        Files.write(file, bytes);
+        return cache;
+    }
+
+    private static List<Stmt> compile(String source) {
+        ErrorReporter errors = ErrorReporter.collecting();
+        List<Stmt> statements = new Parser(new Scanner(Source.of(source), errors), errors).parse();
+        new Resolver(errors).resolve(statements);
+        assertEquals(Arrays.asList(), errors.diagnostics());
+        return Optimizer.optimize(statements);
+    }
+}
@@ -0,0 +1,80 @@
+package com.craftinginterpreters.lox;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.TestFactory;
+
+// Runs every script under regression/ in each mode of the tree-walker and checks what it prints against the
+// script's "// expect: " comments, which hold what the baseline interpreter printed before any of the passes that
+// rewrite the tree existed. A script that should fail also says which runtime error it fails with.
+class RegressionTest {
+    private static final String EXPECT = "// expect: ";
+    private static final String EXPECT_RUNTIME_ERROR = "// expect runtime error: ";
+
+    private enum Mode {
+        DEFAULT(runtime -> runtime),
+        SPECIALIZE(LoxRuntime::specializing),
+        INLINE(runtime -> runtime.inlining(Inliner.DEFAULT_BUDGET)),
+        SPECIALIZE_INLINE(runtime -> runtime.specializing().inlining(Inliner.DEFAULT_BUDGET));
+
+        final UnaryOperator<LoxRuntime> configure;
+
+        Mode(UnaryOperator<LoxRuntime> configure) {
+            this.configure = configure;
+        }
+    }
+
+    @TestFactory
+    Stream<DynamicTest> scripts() throws IOException, URISyntaxException {
+        Path directory = Paths.get(RegressionTest.class.getResource("/regression").toURI());
+        List<Path> scripts = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(file -> file.toString().endsWith(".lox")).sorted().forEach(scripts::add);
+        }
+        List<DynamicTest> tests = new ArrayList<>();
+        for (Path script : scripts) {
+            for (Mode mode : Mode.values()) {
+                tests.add(DynamicTest.dynamicTest(script.getFileName() + " " + mode, () -> run(script, mode)));
+            }
+        }
+        return tests.stream();
+    }
+
+    private static void run(Path script, Mode mode) throws IOException {
+        String source = new String(Files.readAllBytes(script), StandardCharsets.UTF_8);
+        List<String> expected = new ArrayList<>();
+        String expectedError = null;
+        for (String line : source.split("\n")) {
+            int expect = line.indexOf(EXPECT);
+            if (expect >= 0) expected.add(line.substring(expect + EXPECT.length()).trim());
+            int error = line.indexOf(EXPECT_RUNTIME_ERROR);
+            if (error >= 0) expectedError = line.substring(error + EXPECT_RUNTIME_ERROR.length()).trim();
+        }
+
+        List<String> output = new ArrayList<>();
+        List<String> errors = new ArrayList<>();
+        LoxRuntime runtime = mode.configure.apply(new LoxRuntime(output::add, errors::add));
+        LoxRuntime.Result result = runtime.run(source);
+
+        assertEquals(expected, output, "output");
+        if (expectedError == null) {
+            assertEquals(LoxRuntime.Result.OK, result, "result, with errors " + errors);
+        }
+        else {
+            assertEquals(LoxRuntime.Result.RUNTIME_ERROR, result, "result");
+            assertEquals(expectedError, errors.get(0), "runtime error");
+        }
+    }
+}